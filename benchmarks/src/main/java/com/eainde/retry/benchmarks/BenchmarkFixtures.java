@@ -0,0 +1,64 @@
+package com.eainde.retry.benchmarks;
+
+import com.eainde.retry.HandlerConfig;
+import com.eainde.retry.config.KafkaRetryProperties;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the configuration shared by the benchmarks.
+ */
+final class BenchmarkFixtures {
+
+    static final List<String> NON_RETRYABLE_EXCEPTIONS = List.of(
+            "java.lang.IllegalArgumentException",
+            "java.lang.ClassCastException",
+            "java.lang.UnsupportedOperationException",
+            "org.springframework.messaging.converter.MessageConversionException",
+            "com.mycompany.exceptions.PermanentBusinessLogicException");
+
+    static final List<String> RETRYABLE_EXCEPTIONS = List.of(
+            "java.net.SocketTimeoutException",
+            "java.net.ConnectException",
+            "org.springframework.dao.PessimisticLockingFailureException",
+            "com.mycompany.exceptions.TransientDataConflictException");
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Properties with {@code mappingCount} consumer handlers, each mapped to a wildcard topic
+     * pattern of the form {@code cl.uk.*.topic-<n>.rt}, plus the global exception lists.
+     */
+    static KafkaRetryProperties properties(int mappingCount) {
+        Map<String, HandlerConfig> consumer = new LinkedHashMap<>();
+        for (int i = 0; i < mappingCount; i++) {
+            HandlerConfig config = new HandlerConfig();
+            config.setTopic("cl.uk.*." + topicName(i) + ".rt");
+            consumer.put(handlerName(i), config);
+        }
+        KafkaRetryProperties properties = new KafkaRetryProperties();
+        properties.setEnabled(true);
+        properties.setNonRetryableExceptions(NON_RETRYABLE_EXCEPTIONS);
+        properties.setRetryableExceptions(RETRYABLE_EXCEPTIONS);
+        properties.setHandlerMappings(new LinkedHashMap<>(Map.of("consumer", consumer)));
+        return properties;
+    }
+
+    static String handlerName(int index) {
+        return "handler" + index;
+    }
+
+    static String topicName(int index) {
+        return "topic-" + index;
+    }
+
+    /**
+     * A concrete topic that matches the mapping with the given index.
+     */
+    static String concreteTopic(int index) {
+        return "cl.uk.prod." + topicName(index) + ".rt";
+    }
+}
@@ -0,0 +1,64 @@
+package com.eainde.retry.benchmarks;
+
+import com.eainde.retry.ExceptionRetryabilityChecker;
+import com.eainde.retry.RetryQualifierResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retryability decisions for failures wrapped {@code depth} layers deep, the shape produced by
+ * listener containers and messaging adapters. The innermost cause is either transient
+ * (on the retryable list) or fatal (on the non-retryable list).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExceptionRetryabilityCheckerBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int depth;
+
+    private ExceptionRetryabilityChecker checker;
+    private Throwable transientFailure;
+    private Throwable fatalFailure;
+
+    @Setup
+    public void setUp() {
+        checker = new ExceptionRetryabilityChecker(BenchmarkFixtures.properties(10));
+        transientFailure = wrap(new SocketTimeoutException("Read timed out"), depth);
+        fatalFailure = wrap(new IllegalArgumentException("Unknown order type"), depth);
+    }
+
+    @Benchmark
+    public boolean transientCause() {
+        return checker.isRetryable(transientFailure, "handler0", RetryQualifierResolver.FailureContext.CONSUMER);
+    }
+
+    @Benchmark
+    public boolean fatalCause() {
+        return checker.isRetryable(fatalFailure, "handler0", RetryQualifierResolver.FailureContext.CONSUMER);
+    }
+
+    private static Throwable wrap(Throwable root, int depth) {
+        Throwable current = root;
+        for (int i = 1; i < depth; i++) {
+            current = new RuntimeException("Listener failed (layer " + i + ")", current);
+        }
+        return current;
+    }
+}
@@ -0,0 +1,72 @@
+package com.eainde.retry.benchmarks;
+
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.repository.FailedMessageRepository;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link FailedMessageRepository} backed by a map, so that capture benchmarks measure the
+ * library's own work rather than a database. Only the methods used on the capture path are
+ * supported; everything else throws.
+ */
+final class InMemoryFailedMessageRepository {
+
+    private final Map<Long, FailedMessage> rows = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    FailedMessageRepository asRepository() {
+        return (FailedMessageRepository) Proxy.newProxyInstance(
+                FailedMessageRepository.class.getClassLoader(),
+                new Class<?>[]{FailedMessageRepository.class},
+                (proxy, method, args) -> invoke(method, args));
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    void clear() {
+        rows.clear();
+    }
+
+    private Object invoke(Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "save", "saveAndFlush" -> save((FailedMessage) args[0]);
+            case "saveAll" -> saveAll((Iterable<?>) args[0]);
+            case "findById" -> Optional.ofNullable(rows.get((Long) args[0]));
+            case "count" -> (long) rows.size();
+            case "deleteAll" -> {
+                rows.clear();
+                yield null;
+            }
+            case "hashCode" -> System.identityHashCode(this);
+            case "equals" -> args[0] == this;
+            case "toString" -> "InMemoryFailedMessageRepository";
+            default -> throw new UnsupportedOperationException(method.getName());
+        };
+    }
+
+    private FailedMessage save(FailedMessage message) {
+        if (message.getId() == null) {
+            message.setId(sequence.incrementAndGet());
+        }
+        rows.put(message.getId(), message);
+        return message;
+    }
+
+    private List<FailedMessage> saveAll(Iterable<?> messages) {
+        List<FailedMessage> saved = new ArrayList<>();
+        for (Object message : messages) {
+            saved.add(save((FailedMessage) message));
+        }
+        return saved;
+    }
+}
@@ -0,0 +1,79 @@
+package com.eainde.retry.benchmarks;
+
+import com.eainde.retry.ExceptionRetryabilityChecker;
+import com.eainde.retry.RetryOrchestrator;
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.service.KafkaRetryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end failure capture: header inspection, topic routing, retryability check and the
+ * insert, against an in-memory repository so the numbers exclude database latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetryOrchestratorBenchmark {
+
+    private static final int MAPPINGS = 100;
+
+    private InMemoryFailedMessageRepository repository;
+    private RetryOrchestrator orchestrator;
+    private MessagingException retryableFailure;
+    private MessagingException fatalFailure;
+
+    @Setup
+    public void setUp() {
+        KafkaRetryProperties properties = BenchmarkFixtures.properties(MAPPINGS);
+        repository = new InMemoryFailedMessageRepository();
+        orchestrator = new RetryOrchestrator(
+                new KafkaRetryService(repository.asRepository()),
+                new RetryQualifierResolver(properties),
+                new ExceptionRetryabilityChecker(properties));
+
+        Message<String> message = MessageBuilder.withPayload("{\"orderId\":\"42\",\"status\":\"CREATED\"}")
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, BenchmarkFixtures.concreteTopic(MAPPINGS / 2))
+                .build();
+        retryableFailure = new MessagingException(message, "Listener failed",
+                new SocketTimeoutException("Read timed out"));
+        fatalFailure = new MessagingException(message, "Listener failed",
+                new IllegalArgumentException("Unknown order type"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearRepository() {
+        repository.clear();
+    }
+
+    @Benchmark
+    public void retryableFailure() {
+        orchestrator.processFailure(retryableFailure);
+    }
+
+    @Benchmark
+    public void nonRetryableFailure() {
+        orchestrator.processFailure(fatalFailure);
+    }
+}
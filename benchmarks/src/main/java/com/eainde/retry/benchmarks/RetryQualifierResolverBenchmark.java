@@ -0,0 +1,59 @@
+package com.eainde.retry.benchmarks;
+
+import com.eainde.retry.RetryQualifierResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Topic-to-handler routing cost as the number of configured mappings grows.
+ * Topics are drawn uniformly from all mappings, plus a share that matches none of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetryQualifierResolverBenchmark {
+
+    private static final int TOPIC_SAMPLES = 1024;
+
+    @Param({"10", "100", "1000"})
+    public int mappings;
+
+    private RetryQualifierResolver resolver;
+    private String[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        resolver = new RetryQualifierResolver(BenchmarkFixtures.properties(mappings));
+        Random random = new Random(42);
+        topics = new String[TOPIC_SAMPLES];
+        for (int i = 0; i < TOPIC_SAMPLES; i++) {
+            // Roughly one in ten failures comes from a topic without a mapping.
+            topics[i] = random.nextInt(10) == 0
+                    ? "cl.uk.prod.unmapped-" + i + ".rt"
+                    : BenchmarkFixtures.concreteTopic(random.nextInt(mappings));
+        }
+    }
+
+    @Benchmark
+    public Optional<String> resolve() {
+        String topic = topics[next++ & (TOPIC_SAMPLES - 1)];
+        return resolver.resolve(topic, RetryQualifierResolver.FailureContext.CONSUMER);
+    }
+}
@@ -0,0 +1,113 @@
+package com.eainde.retry.benchmarks;
+
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.repository.FailedMessageRepository;
+import com.eainde.retry.scheduler.RetryScheduler;
+import com.eainde.retry.service.RetryMessageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One scheduler cycle (fetch, dispatch, outcome write) over an embedded H2 database in Oracle
+ * mode. Before every invocation {@code batchSize} due rows are inserted; a tenth of the handler
+ * calls fail so both outcome statements are exercised.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RetrySchedulerBenchmark {
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private ConfigurableApplicationContext context;
+    private RetryScheduler retryScheduler;
+    private FailedMessageRepository repository;
+
+    @Setup
+    public void setUp() {
+        context = new SpringApplicationBuilder(BenchmarkApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(
+                        "spring.datasource.url=jdbc:h2:mem:retry;MODE=Oracle;DB_CLOSE_DELAY=-1",
+                        "spring.jpa.hibernate.ddl-auto=create-drop",
+                        "kafka.retry.enabled=true",
+                        "kafka.retry.cron=-",
+                        "kafka.retry.batch-size=" + batchSize,
+                        "kafka.retry.max-retries=1000000")
+                .run();
+        context.getBean(JdbcTemplate.class).execute("""
+                CREATE TABLE shedlock (
+                    name VARCHAR(64) NOT NULL PRIMARY KEY,
+                    lock_until TIMESTAMP NOT NULL,
+                    locked_at TIMESTAMP NOT NULL,
+                    locked_by VARCHAR(255) NOT NULL)
+                """);
+        retryScheduler = context.getBean(RetryScheduler.class);
+        repository = context.getBean(FailedMessageRepository.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void insertDueMessages() {
+        repository.deleteAllInBatch();
+        List<FailedMessage> messages = new ArrayList<>(batchSize);
+        LocalDateTime due = LocalDateTime.now().minusSeconds(1);
+        for (int i = 0; i < batchSize; i++) {
+            FailedMessage message = new FailedMessage();
+            message.setPayload("{\"orderId\":\"" + i + "\",\"status\":\"CREATED\"}");
+            message.setNextAttemptAt(due);
+            messages.add(message);
+        }
+        repository.saveAll(messages);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int pollOnce() {
+        return retryScheduler.pollOnce();
+    }
+
+    @SpringBootConfiguration
+    @EnableAutoConfiguration
+    static class BenchmarkApplication {
+
+        @Bean
+        RetryMessageHandler retryMessageHandler() {
+            return message -> {
+                if (message.getId() % 10 == 0) {
+                    throw new IllegalStateException("Downstream unavailable");
+                }
+            };
+        }
+    }
+}
@@ -2,29 +2,52 @@ package com.eainde.retry;
 
 import com.eainde.retry.HandlerConfig;
 import com.eainde.retry.config.KafkaRetryProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.ClassUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
+/**
+ * Decides whether a failure is worth retrying, based on the global and handler-specific
+ * exception lists.
+ *
+ * The configured class names are resolved to {@link Class} objects once, when the checker is
+ * created; names that are not on the classpath are reported once and ignored. Each decision is
+ * then cached per exception type in a {@link ClassValue} owned by the policy of the handler and
+ * context, so classifying a repeated exception type costs one map lookup and one cache hit.
+ *
+ * Failures usually arrive wrapped (for example a listener exception around a socket timeout),
+ * so the whole cause chain is classified, up to {@code kafka.retry.max-cause-depth} exceptions.
+ */
 public class ExceptionRetryabilityChecker {
 
-    private final KafkaRetryProperties properties;
+    private static final Logger logger = LoggerFactory.getLogger(ExceptionRetryabilityChecker.class);
+
+    private final int maxCauseDepth;
+    private final ExceptionPolicy globalPolicy;
+    private final Map<RetryQualifierResolver.FailureContext, Map<String, ExceptionPolicy>> handlerPolicies =
+            new EnumMap<>(RetryQualifierResolver.FailureContext.class);
 
     public ExceptionRetryabilityChecker(KafkaRetryProperties properties) {
-        this.properties = properties;
+        this.maxCauseDepth = Math.max(1, properties.getMaxCauseDepth());
+        this.globalPolicy = new ExceptionPolicy("global",
+                properties.getNonRetryableExceptions(), properties.getRetryableExceptions());
+        for (RetryQualifierResolver.FailureContext context : RetryQualifierResolver.FailureContext.values()) {
+            handlerPolicies.put(context, compileHandlerPolicies(properties, context));
+        }
     }
 
     /**
      * Checks if a given exception is retryable based on the configured policies
-     * for the specific handler and context.
-     * @param cause The root cause exception of the failure.
-     * @param handlerQualifier The name of the handler bean responsible for the message.
-     * @param context The failure context (PRODUCER or CONSUMER).
-     * @return true if the exception is retryable, false otherwise.
-     */
-    /**
-     * Checks if a given exception is retryable based on the configured policies
-     * for the specific handler and context.
+     * for the specific handler and context. The cause chain is walked up to the configured
+     * depth: the failure is not retried if any exception in the chain is on the blacklist, and,
+     * when a whitelist is defined, it is retried only if some exception in the chain is on it.
      * @param cause The root cause exception of the failure.
      * @param handlerQualifier The name of the handler bean responsible for the message.
      * @param context The failure context (PRODUCER or CONSUMER).
@@ -35,92 +58,161 @@ public class ExceptionRetryabilityChecker {
             logger.warn("Exception cause is null for handler '{}'. Considering it retryable by default.", handlerQualifier);
             return true; // Default to retry if the cause is unknown.
         }
+        ExceptionPolicy policy = findPolicy(handlerQualifier, context);
+        boolean whitelisted = false;
+        // The slow pointer advances every other frame; meeting it again means the chain loops.
+        Throwable slow = cause;
+        Throwable current = cause;
+        for (int depth = 1; current != null && depth <= maxCauseDepth; depth++) {
+            Classification classification = policy.classify(current.getClass());
+            if (classification == Classification.NON_RETRYABLE) {
+                return false; // The blacklist always has the highest precedence.
+            }
+            whitelisted |= classification == Classification.RETRYABLE;
 
-        List<String> nonRetryableExceptions;
-        List<String> retryableExceptions;
-
-        // Step 1: Find the most specific configuration available (handler-specific or global).
-        HandlerConfig handlerConfig = findHandlerConfig(handlerQualifier, context);
-
-        if (handlerConfig != null) {
-            logger.debug("Using handler-specific exception rules for handler '{}' in context '{}'.", handlerQualifier, context);
-            nonRetryableExceptions = handlerConfig.getNonRetryableExceptions();
-            retryableExceptions = handlerConfig.getRetryableExceptions();
-        } else {
-            logger.debug("No handler-specific rules found for '{}'. Falling back to global exception rules.", handlerQualifier);
-            nonRetryableExceptions = properties.getNonRetryableExceptions();
-            retryableExceptions = properties.getRetryableExceptions();
-        }
-
-        // Ensure lists are not null to prevent NullPointerExceptions.
-        nonRetryableExceptions = nonRetryableExceptions != null ? nonRetryableExceptions : Collections.emptyList();
-        retryableExceptions = retryableExceptions != null ? retryableExceptions : Collections.emptyList();
-
-        // Step 2: Check the blacklist first, as it always has the highest precedence.
-        if (isExceptionInList(cause, nonRetryableExceptions)) {
-            logger.warn("Exception {} for handler '{}' is in the NON-RETRYABLE list. Decision: DO NOT RETRY.", cause.getClass().getName(), handlerQualifier);
-            return false;
-        }
-
-        // Step 3: If a whitelist is defined, the exception MUST be on it to be retried.
-        if (!retryableExceptions.isEmpty()) {
-            if (isExceptionInList(cause, retryableExceptions)) {
-                logger.info("Exception {} for handler '{}' is in the RETRYABLE list. Decision: RETRY.", cause.getClass().getName(), handlerQualifier);
-                return true;
-            } else {
-                logger.warn("Exception {} for handler '{}' is NOT in the defined RETRYABLE list. Decision: DO NOT RETRY.", cause.getClass().getName(), handlerQualifier);
-                return false;
+            Throwable next = current.getCause();
+            if (next == current) {
+                break;
+            }
+            if (depth % 2 == 0) {
+                slow = slow.getCause();
+            }
+            if (next == slow) {
+                logger.warn("Cause chain of {} for handler '{}' contains a cycle. Stopping after {} exceptions.",
+                        cause.getClass().getName(), handlerQualifier, depth);
+                break;
             }
+            current = next;
         }
-
-        // Step 4: If no whitelist is defined and it's not on the blacklist, retry by default.
-        logger.info("Exception {} for handler '{}' is not blacklisted and no specific whitelist is defined. Decision: RETRY by default.", cause.getClass().getName(), handlerQualifier);
-        return true;
+        // If a whitelist is defined, some exception in the chain MUST be on it to be retried.
+        return whitelisted || !policy.isWhitelistDefined();
     }
 
     /**
-     * Finds the specific HandlerConfig for a given handler and context from the application properties.
-     * This implementation assumes the `handler-mappings` property is a Map where the keys
-     * are "consumer" and "producer".
+     * Finds the most specific policy available: handler-specific if the handler has a
+     * configuration in the given context, global otherwise.
      * @param handlerQualifier The name of the handler bean.
      * @param context The failure context (PRODUCER or CONSUMER).
-     * @return The HandlerConfig if found, otherwise null.
+     * @return The policy to apply, never null.
+     */
+    private ExceptionPolicy findPolicy(String handlerQualifier, RetryQualifierResolver.FailureContext context) {
+        ExceptionPolicy policy = handlerQualifier != null && context != null
+                ? handlerPolicies.get(context).get(handlerQualifier)
+                : null;
+        return policy != null ? policy : globalPolicy;
+    }
+
+    /**
+     * Compiles the policies of every handler configured for a context. This assumes the
+     * `handler-mappings` property is a Map where the keys are "consumer" and "producer".
      */
-    private HandlerConfig findHandlerConfig(String handlerQualifier, RetryQualifierResolver.FailureContext context) {
+    private static Map<String, ExceptionPolicy> compileHandlerPolicies(KafkaRetryProperties properties,
+                                                                       RetryQualifierResolver.FailureContext context) {
         if (properties.getHandlerMappings() == null) {
-            return null;
+            return Collections.emptyMap();
         }
-
-        // Determine which map to look in ("consumer" or "producer") based on the context.
         String contextKey = context == RetryQualifierResolver.FailureContext.CONSUMER ? "consumer" : "producer";
         Map<String, HandlerConfig> contextMappings = properties.getHandlerMappings().get(contextKey);
-
         if (contextMappings == null) {
-            return null;
+            return Collections.emptyMap();
         }
+        Map<String, ExceptionPolicy> policies = new HashMap<>();
+        contextMappings.forEach((handlerQualifier, handlerConfig) -> {
+            if (handlerConfig != null) {
+                policies.put(handlerQualifier, new ExceptionPolicy(contextKey + " handler '" + handlerQualifier + "'",
+                        handlerConfig.getNonRetryableExceptions(), handlerConfig.getRetryableExceptions()));
+            }
+        });
+        return policies;
+    }
 
-        // Look up the specific handler configuration within the correct context map.
-        return contextMappings.get(handlerQualifier);
+    /**
+     * Resolves configured class names to classes. Unknown names are reported here, once.
+     * @param exceptionList A list of fully qualified class names.
+     * @param owner A description of where the list is configured, for the log message.
+     * @return The classes that could be loaded.
+     */
+    private static List<Class<?>> resolveClasses(List<String> exceptionList, String owner) {
+        if (exceptionList == null || exceptionList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Class<?>> classes = new ArrayList<>(exceptionList.size());
+        for (String exceptionClassName : exceptionList) {
+            try {
+                classes.add(ClassUtils.forName(exceptionClassName.trim(), null));
+            } catch (ClassNotFoundException | LinkageError e) {
+                logger.error("Configured exception class not found on classpath for {} rules and will be ignored: {}",
+                        owner, exceptionClassName);
+            }
+        }
+        return List.copyOf(classes);
     }
 
+    /**
+     * How a single exception type relates to the lists of a policy.
+     */
+    private enum Classification {
+        /** The type is (a subclass of) an entry of the blacklist. */
+        NON_RETRYABLE,
+        /** The type is (a subclass of) an entry of the whitelist, and not blacklisted. */
+        RETRYABLE,
+        /** The type is on neither list. */
+        UNLISTED
+    }
 
     /**
-     * Checks if a given Throwable is an instance of any of the class names in the provided list.
-     * @param cause The exception to check.
-     * @param exceptionList A list of fully qualified class names.
-     * @return true if the exception is an instance of a class in the list, false otherwise.
+     * The compiled exception lists of one scope (global or one handler in one context), with a
+     * per-type classification cache.
      */
-    private boolean isExceptionInList(Throwable cause, List<String> exceptionList) {
-        return exceptionList.stream()
-                .anyMatch(exceptionClassName -> {
-                    try {
-                        Class<?> exceptionClass = Class.forName(exceptionClassName);
-                        // isInstance() correctly handles subclasses.
-                        return exceptionClass.isInstance(cause);
-                    } catch (ClassNotFoundException e) {
-                        logger.error("Configured exception class not found on classpath: {}", exceptionClassName, e);
-                        return false;
-                    }
-                });
+    private static final class ExceptionPolicy {
+
+        private final String owner;
+        private final List<Class<?>> nonRetryable;
+        private final List<Class<?>> retryable;
+        private final boolean whitelistDefined;
+        private final ClassValue<Classification> classifications = new ClassValue<>() {
+            @Override
+            protected Classification computeValue(Class<?> type) {
+                Classification classification = decide(type);
+                logger.info("Exception {} is {} for the {} rules.", type.getName(), classification, owner);
+                return classification;
+            }
+        };
+
+        private ExceptionPolicy(String owner, List<String> nonRetryableExceptions, List<String> retryableExceptions) {
+            this.owner = owner;
+            this.nonRetryable = resolveClasses(nonRetryableExceptions, owner);
+            this.retryable = resolveClasses(retryableExceptions, owner);
+            // A whitelist made only of unknown classes still restricts retries, as before.
+            this.whitelistDefined = retryableExceptions != null && !retryableExceptions.isEmpty();
+        }
+
+        private Classification classify(Class<?> exceptionType) {
+            return classifications.get(exceptionType);
+        }
+
+        private boolean isWhitelistDefined() {
+            return whitelistDefined;
+        }
+
+        /**
+         * Matches an exception type against the lists. Called once per type; the result is cached.
+         */
+        private Classification decide(Class<?> exceptionType) {
+            if (isAssignableToAny(exceptionType, nonRetryable)) {
+                return Classification.NON_RETRYABLE;
+            }
+            return isAssignableToAny(exceptionType, retryable) ? Classification.RETRYABLE : Classification.UNLISTED;
+        }
+
+        private static boolean isAssignableToAny(Class<?> exceptionType, List<Class<?>> classes) {
+            for (Class<?> configured : classes) {
+                // isAssignableFrom() correctly handles subclasses.
+                if (configured.isAssignableFrom(exceptionType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
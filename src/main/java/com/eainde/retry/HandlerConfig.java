@@ -1,5 +1,7 @@
 package com.eainde.retry;
 
+import com.eainde.retry.config.KafkaRetryProperties;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,6 +15,41 @@ public class HandlerConfig {
     private List<String> nonRetryableExceptions = new ArrayList<>();
     private List<String> retryableExceptions = new ArrayList<>();
 
+    /**
+     * The maximum number of this handler's messages fetched per scheduler run, however much of
+     * the run's budget is left. Defaults to {@code kafka.retry.batch-size}.
+     */
+    private Integer batchSize;
+
+    /**
+     * This handler's share of each scheduler run relative to the other handlers. Defaults to 1.
+     */
+    private Integer weight;
+
+    /**
+     * How many of this handler's messages may be processed at once.
+     * Defaults to {@code kafka.retry.dispatch.max-in-flight-per-handler}.
+     */
+    private Integer maxInFlight;
+
+    /**
+     * The sustained number of retry attempts per second of this handler.
+     * Defaults to {@code kafka.retry.rate-limit.permits-per-second}.
+     */
+    private Double permitsPerSecond;
+
+    /**
+     * The number of attempts this handler may make back to back after being idle.
+     * Defaults to {@code kafka.retry.rate-limit.burst}.
+     */
+    private Integer burst;
+
+    /**
+     * How long this handler's messages wait between retries. Replaces {@code kafka.retry.backoff}
+     * as a whole for this handler.
+     */
+    private KafkaRetryProperties.Backoff backoff;
+
     // --- Getters and Setters ---
     public String getTopic() {
         return topic;
@@ -37,5 +74,52 @@ public class HandlerConfig {
     public void setRetryableExceptions(List<String> retryableExceptions) {
         this.retryableExceptions = retryableExceptions;
     }
-}
 
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Integer getWeight() {
+        return weight;
+    }
+
+    public void setWeight(Integer weight) {
+        this.weight = weight;
+    }
+
+    public Integer getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(Integer maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public void setPermitsPerSecond(Double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public Integer getBurst() {
+        return burst;
+    }
+
+    public void setBurst(Integer burst) {
+        this.burst = burst;
+    }
+
+    public KafkaRetryProperties.Backoff getBackoff() {
+        return backoff;
+    }
+
+    public void setBackoff(KafkaRetryProperties.Backoff backoff) {
+        this.backoff = backoff;
+    }
+}
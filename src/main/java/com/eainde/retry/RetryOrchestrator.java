@@ -1,13 +1,24 @@
 package com.eainde.retry;
 
+import com.eainde.retry.service.InProcessRetryTier;
 import com.eainde.retry.service.KafkaRetryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.cloud.stream.binder.BinderHeaders;
+import org.springframework.kafka.listener.BatchListenerFailedException;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.MessagingException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 
 /**
@@ -20,9 +31,12 @@ public class RetryOrchestrator {
 
     private static final Logger logger = LoggerFactory.getLogger(RetryOrchestrator.class);
 
+    private static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
     private final KafkaRetryService retryService;
     private final RetryQualifierResolver qualifierResolver;
     private final ExceptionRetryabilityChecker retryabilityChecker;
+    private final InProcessRetryTier inProcessRetryTier;
 
     /**
      * A private record to hold the extracted details of a failed message.
@@ -30,12 +44,37 @@ public class RetryOrchestrator {
      */
     private record FailureDetails(String topic, RetryQualifierResolver.FailureContext context) {}
 
+    /**
+     * The payload of a failed message as it will be stored, with the record key for retry topics.
+     */
+    private record CapturedPayload(byte[] bytes, String contentType, byte[] key) {}
+
+    /**
+     * Identifies one retryability decision within a batch. Throwables compare by identity, so
+     * records failing with the same exception instance share a decision.
+     */
+    private record DecisionKey(Throwable cause, String qualifier, RetryQualifierResolver.FailureContext context) {}
+
     public RetryOrchestrator(KafkaRetryService retryService,
                              RetryQualifierResolver qualifierResolver,
                              ExceptionRetryabilityChecker retryabilityChecker) {
+        this(retryService, qualifierResolver, retryabilityChecker, null);
+    }
+
+    /**
+     * @param retryService The service that stores failed messages.
+     * @param qualifierResolver Maps topics to handler beans.
+     * @param retryabilityChecker Decides whether a failure is retried.
+     * @param inProcessRetryTier Retries retryable failures in memory before they are stored, or null.
+     */
+    public RetryOrchestrator(KafkaRetryService retryService,
+                             RetryQualifierResolver qualifierResolver,
+                             ExceptionRetryabilityChecker retryabilityChecker,
+                             InProcessRetryTier inProcessRetryTier) {
         this.retryService = retryService;
         this.qualifierResolver = qualifierResolver;
         this.retryabilityChecker = retryabilityChecker;
+        this.inProcessRetryTier = inProcessRetryTier;
     }
 
     /**
@@ -57,16 +96,137 @@ public class RetryOrchestrator {
         }
         FailureDetails details = detailsOptional.get();
 
-        // Step 2: Ensure the payload is a String before proceeding.
-        if (!(failedMessage.getPayload() instanceof String payload)) {
-            logger.error("Payload is not a String. Cannot process for retry. Payload type: {}", failedMessage.getPayload().getClass().getName());
+        // Step 2: Take the payload as bytes, without a String round trip for binary payloads.
+        Optional<CapturedPayload> payloadOptional = capturePayload(failedMessage);
+        if (payloadOptional.isEmpty()) {
             return;
         }
+        CapturedPayload payload = payloadOptional.get();
 
         // Step 3: Resolve the handler and process the failure based on exception policies.
         resolveAndProcess(exception.getCause(), details, payload);
     }
 
+    /**
+     * Processes the failures of several messages together, typically the records of a batch
+     * listener. Topics are resolved and causes classified once per distinct topic and cause,
+     * and all messages are saved in one batch.
+     * @param exceptions The MessagingExceptions of the failed messages.
+     */
+    public void processFailures(List<MessagingException> exceptions) {
+        List<Message<?>> messages = new ArrayList<>(exceptions.size());
+        List<Throwable> causes = new ArrayList<>(exceptions.size());
+        for (MessagingException exception : exceptions) {
+            if (exception.getFailedMessage() == null) {
+                logger.warn("Received a non-messaging exception on errorChannel, cannot process for retry.", exception);
+                continue;
+            }
+            messages.add(exception.getFailedMessage());
+            causes.add(exception.getCause());
+        }
+        captureAll(messages, causes);
+    }
+
+    /**
+     * Processes the failure of a batch listener. The records before the failed one were
+     * processed and are skipped; the failed record is classified by the exception's cause, and
+     * the records after it, which were never processed, are saved for retry. If the failed
+     * record cannot be located, every record of the batch is classified by the cause.
+     * @param exception The exception thrown by the batch listener.
+     * @param batch The messages of the batch, in the order they were delivered.
+     */
+    public void processBatchFailure(BatchListenerFailedException exception, List<? extends Message<?>> batch) {
+        int failedIndex = findFailedIndex(exception, batch);
+        Throwable cause = exception.getCause();
+        List<Message<?>> messages = new ArrayList<>(batch.size());
+        List<Throwable> causes = new ArrayList<>(batch.size());
+        for (int i = Math.max(failedIndex, 0); i < batch.size(); i++) {
+            messages.add(batch.get(i));
+            // Unprocessed records did not fail themselves, so they are always retried.
+            causes.add(failedIndex < 0 || i == failedIndex ? cause : null);
+        }
+        captureAll(messages, causes);
+    }
+
+    /**
+     * Resolves, classifies and saves a list of failed messages.
+     * @param messages The failed messages.
+     * @param causes The cause of each message's failure, or null for "retry unconditionally".
+     */
+    private void captureAll(List<Message<?>> messages, List<Throwable> causes) {
+        Map<FailureDetails, Optional<String>> qualifiers = new HashMap<>();
+        Map<DecisionKey, Boolean> decisions = new HashMap<>();
+        List<KafkaRetryService.CapturedFailure> failures = new ArrayList<>(messages.size());
+        int skipped = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            Message<?> failedMessage = messages.get(i);
+            Optional<FailureDetails> detailsOptional = determineFailureDetails(failedMessage);
+            if (detailsOptional.isEmpty()) {
+                skipped++;
+                continue;
+            }
+            FailureDetails details = detailsOptional.get();
+            Optional<CapturedPayload> payload = capturePayload(failedMessage);
+            if (payload.isEmpty()) {
+                skipped++;
+                continue;
+            }
+            Optional<String> qualifier = qualifiers.computeIfAbsent(details,
+                    key -> qualifierResolver.resolve(key.topic(), key.context()));
+            if (qualifier.isEmpty()) {
+                logger.error("No handler mapping found for topic '{}' in context '{}'.", details.topic(), details.context());
+                skipped++;
+                continue;
+            }
+            Throwable cause = causes.get(i);
+            boolean retryable = cause == null || decisions.computeIfAbsent(
+                    new DecisionKey(cause, qualifier.get(), details.context()),
+                    key -> retryabilityChecker.isRetryable(key.cause(), key.qualifier(), key.context()));
+            failures.add(new KafkaRetryService.CapturedFailure(payload.get().bytes(), payload.get().contentType(),
+                    qualifier.get(), details.context(), retryable, details.topic(), payload.get().key()));
+        }
+        long permanent = failures.stream().filter(failure -> !failure.retryable()).count();
+        logger.info("Captured {} failed messages: {} for retry, {} as PERMANENT_FAILURE, {} skipped.",
+                messages.size(), failures.size() - permanent, permanent, skipped);
+        if (inProcessRetryTier == null) {
+            retryService.saveFailedMessages(failures);
+            return;
+        }
+        // Retryable messages are first retried in memory; only the permanent failures are stored now.
+        List<KafkaRetryService.CapturedFailure> permanentFailures = new ArrayList<>((int) permanent);
+        for (KafkaRetryService.CapturedFailure failure : failures) {
+            if (failure.retryable()) {
+                inProcessRetryTier.submit(failure);
+            } else {
+                permanentFailures.add(failure);
+            }
+        }
+        retryService.saveFailedMessages(permanentFailures);
+    }
+
+    /**
+     * Locates the failed record of a batch listener failure, by index or by topic, partition and offset.
+     * @return The index of the failed record in the batch, or -1 if it cannot be located.
+     */
+    private int findFailedIndex(BatchListenerFailedException exception, List<? extends Message<?>> batch) {
+        if (exception.getIndex() >= 0 && exception.getIndex() < batch.size()) {
+            return exception.getIndex();
+        }
+        ConsumerRecord<?, ?> record = exception.getRecord();
+        if (record != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                MessageHeaders headers = batch.get(i).getHeaders();
+                if (record.topic().equals(headers.get(KafkaHeaders.RECEIVED_TOPIC))
+                        && Objects.equals(record.partition(), headers.get(KafkaHeaders.RECEIVED_PARTITION))
+                        && Objects.equals(record.offset(), headers.get(KafkaHeaders.OFFSET))) {
+                    return i;
+                }
+            }
+        }
+        logger.warn("Could not locate the failed record of a batch of {} messages. Classifying the whole batch.", batch.size());
+        return -1;
+    }
+
     /**
      * Determines the failure context (PRODUCER or CONSUMER) and the target topic
      * by inspecting the headers of the failed message.
@@ -93,7 +253,7 @@ public class RetryOrchestrator {
      * @param details The context of the failure (topic and producer/consumer).
      * @param payload The message payload to save.
      */
-    private void resolveAndProcess(Throwable cause, FailureDetails details, String payload) {
+    private void resolveAndProcess(Throwable cause, FailureDetails details, CapturedPayload payload) {
         Optional<String> handlerQualifierOpt = qualifierResolver.resolve(details.topic(), details.context());
 
         if (handlerQualifierOpt.isEmpty()) {
@@ -112,18 +272,22 @@ public class RetryOrchestrator {
 
     /**
      * Persists a message to the appropriate database table with a 'FAILED' status
-     * so it can be picked up by the schedulers.
+     * so it can be picked up by the schedulers. With the in-process tier enabled, the message is
+     * retried in memory first and only persisted if it keeps failing.
      * @param payload The message payload.
      * @param qualifier The resolved handler name.
      * @param details The context of the failure.
      */
-    private void saveForRetry(String payload, String qualifier, FailureDetails details) {
-        logger.info("A retryable error occurred for topic '{}'. Saving for retry with handler '{}'.", details.topic(), qualifier);
-        if (details.context() == RetryQualifierResolver.FailureContext.PRODUCER) {
-            retryService.saveFailedProducerMessage(payload, qualifier);
-        } else {
-            retryService.saveFailedConsumerMessage(payload, qualifier);
+    private void saveForRetry(CapturedPayload payload, String qualifier, FailureDetails details) {
+        KafkaRetryService.CapturedFailure failure = new KafkaRetryService.CapturedFailure(payload.bytes(),
+                payload.contentType(), qualifier, details.context(), true, details.topic(), payload.key());
+        if (inProcessRetryTier != null) {
+            logger.info("A retryable error occurred for topic '{}'. Retrying in process with handler '{}'.", details.topic(), qualifier);
+            inProcessRetryTier.submit(failure);
+            return;
         }
+        logger.info("A retryable error occurred for topic '{}'. Saving for retry with handler '{}'.", details.topic(), qualifier);
+        retryService.saveFailedMessage(failure);
     }
 
     /**
@@ -134,12 +298,65 @@ public class RetryOrchestrator {
      * @param qualifier The resolved handler name.
      * @param details The context of the failure.
      */
-    private void saveAsPermanentFailure(Throwable cause, String payload, String qualifier, FailureDetails details) {
+    private void saveAsPermanentFailure(Throwable cause, CapturedPayload payload, String qualifier, FailureDetails details) {
         logger.error("A non-retryable error occurred for topic '{}'. Saving as PERMANENT_FAILURE for handler '{}'.", details.topic(), qualifier, cause);
-        if (details.context() == RetryQualifierResolver.FailureContext.PRODUCER) {
-            retryService.saveProducerMessageAsPermanentFailure(payload, qualifier);
-        } else {
-            retryService.saveConsumerMessageAsPermanentFailure(payload, qualifier);
+        retryService.saveFailedMessage(new KafkaRetryService.CapturedFailure(payload.bytes(), payload.contentType(),
+                qualifier, details.context(), false, details.topic(), payload.key()));
+    }
+
+    /**
+     * Takes the payload of a failed message as bytes. Binary payloads are kept as received;
+     * Strings are encoded as UTF-8.
+     * @param failedMessage The message that failed.
+     * @return The payload and its content type, or empty if the payload type is not supported.
+     */
+    private Optional<CapturedPayload> capturePayload(Message<?> failedMessage) {
+        Object payload = failedMessage.getPayload();
+        Object contentTypeHeader = failedMessage.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+        String contentType = contentTypeHeader != null ? contentTypeHeader.toString() : null;
+        byte[] key = captureKey(failedMessage);
+        if (payload instanceof byte[] bytes) {
+            return Optional.of(new CapturedPayload(bytes, contentType != null ? contentType : BINARY_CONTENT_TYPE, key));
+        }
+        if (payload instanceof ByteBuffer buffer) {
+            return Optional.of(new CapturedPayload(toByteArray(buffer), contentType != null ? contentType : BINARY_CONTENT_TYPE, key));
+        }
+        if (payload instanceof String text) {
+            return Optional.of(new CapturedPayload(text.getBytes(StandardCharsets.UTF_8),
+                    contentType != null ? contentType : KafkaRetryService.TEXT_CONTENT_TYPE, key));
+        }
+        logger.error("Payload is neither a String nor bytes. Cannot process for retry. Payload type: {}", payload.getClass().getName());
+        return Optional.empty();
+    }
+
+    /**
+     * Takes the record key of a consumed or produced message, so a retry topic keeps its partitioning.
+     * @return The key as bytes, or null if there is none or it is neither bytes nor a String.
+     */
+    private static byte[] captureKey(Message<?> failedMessage) {
+        Object key = failedMessage.getHeaders().get(KafkaHeaders.RECEIVED_KEY);
+        if (key == null) {
+            key = failedMessage.getHeaders().get(KafkaHeaders.KEY);
+        }
+        if (key instanceof byte[] bytes) {
+            return bytes;
+        }
+        if (key instanceof String text) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Uses the backing array when the buffer covers all of it, and copies the remaining bytes otherwise.
+     */
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
         }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
     }
 }
@@ -2,39 +2,52 @@ package com.eainde.retry;
 
 import com.eainde.retry.HandlerConfig;
 import com.eainde.retry.config.KafkaRetryProperties;
-import org.springframework.util.AntPathMatcher;
 
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 
+/**
+ * Resolves the handler qualifier responsible for a failed message from the topic it came from.
+ * The topic patterns of each context are compiled into a {@link TopicIndex} once, when the
+ * resolver is created.
+ */
 public class RetryQualifierResolver {
-    // ... fields ...
-    private final KafkaRetryProperties retryProperties;
-    private final AntPathMatcher pathMatcher = new AntPathMatcher(".");
+
+    private final Map<FailureContext, TopicIndex> indexes = new EnumMap<>(FailureContext.class);
 
     public enum FailureContext { PRODUCER, CONSUMER }
 
     public RetryQualifierResolver(KafkaRetryProperties retryProperties) {
-        this.retryProperties = retryProperties;
+        for (FailureContext context : FailureContext.values()) {
+            indexes.put(context, new TopicIndex(topicsByQualifier(retryProperties, context),
+                    retryProperties.getTopicCacheSize()));
+        }
     }
 
     public Optional<String> resolve(String topic, FailureContext context) {
-        Map<String, HandlerConfig> contextMappings = getMappingsForContext(context);
+        return indexes.get(context).resolve(topic);
+    }
+
+    private static Map<String, String> topicsByQualifier(KafkaRetryProperties retryProperties, FailureContext context) {
+        Map<String, HandlerConfig> contextMappings = getMappingsForContext(retryProperties, context);
         if (contextMappings == null) {
-            return Optional.empty();
+            return Collections.emptyMap();
         }
-
-        for (Map.Entry<String, HandlerConfig> entry : contextMappings.entrySet()) {
-            String handlerName = entry.getKey();
-            HandlerConfig handlerConfig = entry.getValue();
-            if (handlerConfig != null && pathMatcher.match(handlerConfig.getTopic(), topic)) {
-                return Optional.of(handlerName);
+        // Keep the declaration order; it decides between overlapping patterns.
+        Map<String, String> topics = new LinkedHashMap<>();
+        contextMappings.forEach((handlerName, handlerConfig) -> {
+            if (handlerConfig != null) {
+                topics.put(handlerName, handlerConfig.getTopic());
             }
-        }
-        return Optional.empty();
+        });
+        return topics;
     }
 
-    private Map<String, HandlerConfig> getMappingsForContext(FailureContext context) {
+    private static Map<String, HandlerConfig> getMappingsForContext(KafkaRetryProperties retryProperties,
+                                                                    FailureContext context) {
         if (retryProperties.getHandlerMappings() == null) {
             return null;
         }
@@ -43,4 +56,3 @@ public class RetryQualifierResolver {
                 retryProperties.getHandlerMappings().get("producer");
     }
 }
-
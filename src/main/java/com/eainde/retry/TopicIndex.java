@@ -0,0 +1,281 @@
+package com.eainde.retry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled index from Kafka topics to handler qualifiers, built once from the configured topic
+ * patterns. Patterns use the {@code AntPathMatcher} syntax with {@code .} as the separator:
+ * {@code *} and {@code ?} match within one segment, {@code {name}} and {@code {name:regex}}
+ * capture one segment, and {@code **} matches any number of segments.
+ *
+ * Topics without wildcards are kept in a hash map. Wildcard patterns are kept in a trie keyed on
+ * their segments, so resolving a topic only visits the branches its segments can match instead of
+ * every pattern. Results, including misses, are memoized in a cache of a fixed number of topics.
+ * A cache hit is a lock-free read; once the cache is full, a miss evicts a topic with a CLOCK
+ * (second-chance) sweep, so a growing set of topics keeps its recently used ones cached.
+ *
+ * Precedence is deterministic: an exact topic wins over any pattern, and among overlapping
+ * patterns the one declared first wins.
+ */
+final class TopicIndex {
+
+    private static final char SEPARATOR = '.';
+    private static final String ANY_SEGMENTS = "**";
+
+    private final Map<String, Mapping> exactTopics = new HashMap<>();
+    private final Node patterns = new Node();
+    private final ConcurrentMap<String, Resolution> resolved = new ConcurrentHashMap<>();
+    private final int cacheSize;
+
+    /**
+     * The position of the CLOCK sweep, only moved while holding the index's lock. Iterators of a
+     * ConcurrentHashMap tolerate concurrent updates, so it stays usable between evictions.
+     */
+    private Iterator<Map.Entry<String, Resolution>> clockHand;
+
+    /**
+     * @param topicsByQualifier The topic pattern of each handler, in declaration order.
+     * @param cacheSize The maximum number of memoized topics; a topic not used recently is evicted.
+     */
+    TopicIndex(Map<String, String> topicsByQualifier, int cacheSize) {
+        this.cacheSize = Math.max(1, cacheSize);
+        int order = 0;
+        for (Map.Entry<String, String> entry : topicsByQualifier.entrySet()) {
+            String topic = entry.getValue();
+            if (topic == null) {
+                continue;
+            }
+            Mapping mapping = new Mapping(entry.getKey(), order++);
+            if (isLiteral(topic)) {
+                exactTopics.putIfAbsent(topic, mapping);
+            } else {
+                patterns.insert(split(topic), 0, mapping);
+            }
+        }
+    }
+
+    /**
+     * @param topic The topic a failed message came from.
+     * @return The qualifier of the handler mapped to the topic, if any.
+     */
+    Optional<String> resolve(String topic) {
+        if (topic == null) {
+            return Optional.empty();
+        }
+        Resolution cached = resolved.get(topic);
+        if (cached != null) {
+            cached.markUsed();
+            return cached.qualifier();
+        }
+        Resolution resolution = new Resolution(lookup(topic));
+        if (resolved.putIfAbsent(topic, resolution) == null && resolved.size() > cacheSize) {
+            evict();
+        }
+        return resolution.qualifier();
+    }
+
+    /**
+     * Sweeps the cache until it is back within its size, giving every topic used since the hand
+     * last passed it a second chance and removing the first one that was not.
+     */
+    private synchronized void evict() {
+        while (resolved.size() > cacheSize) {
+            if (clockHand == null || !clockHand.hasNext()) {
+                clockHand = resolved.entrySet().iterator();
+            }
+            Map.Entry<String, Resolution> entry = clockHand.next();
+            if (!entry.getValue().clearUsed()) {
+                resolved.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Optional<String> lookup(String topic) {
+        Mapping exact = exactTopics.get(topic);
+        if (exact != null) {
+            return Optional.of(exact.qualifier());
+        }
+        Mapping match = patterns.match(split(topic), 0, null);
+        return match != null ? Optional.of(match.qualifier()) : Optional.empty();
+    }
+
+    private static boolean isLiteral(String pattern) {
+        return pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0 && pattern.indexOf('{') < 0;
+    }
+
+    private static String[] split(String topic) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == SEPARATOR) {
+                if (i > start) {
+                    segments.add(topic.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        if (start < topic.length()) {
+            segments.add(topic.substring(start));
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static Mapping earliest(Mapping current, Mapping candidate) {
+        if (candidate == null) {
+            return current;
+        }
+        return current == null || candidate.order() < current.order() ? candidate : current;
+    }
+
+    /**
+     * Compiles one wildcard segment, such as {@code *}, {@code order-*} or {@code {env}}, to a regex.
+     */
+    private static Pattern compileSegment(String segment) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '*' || c == '?' || c == '{') {
+                if (!literal.isEmpty()) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                if (c == '*') {
+                    regex.append(".*");
+                } else if (c == '?') {
+                    regex.append('.');
+                } else {
+                    int end = segment.indexOf('}', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed variable in topic pattern segment: " + segment);
+                    }
+                    String variable = segment.substring(i + 1, end);
+                    int colon = variable.indexOf(':');
+                    regex.append('(').append(colon < 0 ? ".*" : variable.substring(colon + 1)).append(')');
+                    i = end;
+                }
+            } else {
+                literal.append(c);
+            }
+        }
+        if (!literal.isEmpty()) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private record Mapping(String qualifier, int order) {
+    }
+
+    /**
+     * A memoized result and whether it was read since the CLOCK hand last passed it. A new entry
+     * counts as used, so it is not the first to go.
+     */
+    private static final class Resolution {
+
+        private final Optional<String> qualifier;
+        private volatile boolean used = true;
+
+        private Resolution(Optional<String> qualifier) {
+            this.qualifier = qualifier;
+        }
+
+        private Optional<String> qualifier() {
+            return qualifier;
+        }
+
+        private void markUsed() {
+            // Only written when cleared, so hits on a hot topic do not keep invalidating its cache line.
+            if (!used) {
+                used = true;
+            }
+        }
+
+        /**
+         * @return Whether the entry was used since the last sweep.
+         */
+        private boolean clearUsed() {
+            boolean wasUsed = used;
+            used = false;
+            return wasUsed;
+        }
+    }
+
+    /**
+     * A trie node. Children are split by how they match the next topic segment: literally, through
+     * a compiled segment pattern, or as {@code **}.
+     */
+    private static final class Node {
+
+        private final Map<String, Node> literalChildren = new HashMap<>();
+        private final List<PatternChild> patternChildren = new ArrayList<>();
+        private Node anySegmentsChild;
+        private Mapping mapping;
+
+        private void insert(String[] segments, int index, Mapping newMapping) {
+            if (index == segments.length) {
+                mapping = earliest(mapping, newMapping);
+                return;
+            }
+            String segment = segments[index];
+            Node child;
+            if (ANY_SEGMENTS.equals(segment)) {
+                if (anySegmentsChild == null) {
+                    anySegmentsChild = new Node();
+                }
+                child = anySegmentsChild;
+            } else if (isLiteral(segment)) {
+                child = literalChildren.computeIfAbsent(segment, key -> new Node());
+            } else {
+                child = patternChildren.stream()
+                        .filter(existing -> existing.segment().equals(segment))
+                        .map(PatternChild::node)
+                        .findFirst()
+                        .orElse(null);
+                if (child == null) {
+                    child = new Node();
+                    patternChildren.add(new PatternChild(segment, compileSegment(segment), child));
+                }
+            }
+            child.insert(segments, index + 1, newMapping);
+        }
+
+        /**
+         * @return The earliest declared mapping matching the segments from {@code index} on, or {@code best}.
+         */
+        private Mapping match(String[] segments, int index, Mapping best) {
+            if (index == segments.length) {
+                best = earliest(best, mapping);
+            } else {
+                String segment = segments[index];
+                Node literal = literalChildren.get(segment);
+                if (literal != null) {
+                    best = literal.match(segments, index + 1, best);
+                }
+                for (PatternChild child : patternChildren) {
+                    if (child.pattern().matcher(segment).matches()) {
+                        best = child.node().match(segments, index + 1, best);
+                    }
+                }
+            }
+            if (anySegmentsChild != null) {
+                // ** consumes zero or more of the remaining segments.
+                for (int next = index; next <= segments.length; next++) {
+                    best = anySegmentsChild.match(segments, next, best);
+                }
+            }
+            return best;
+        }
+    }
+
+    private record PatternChild(String segment, Pattern pattern, Node node) {
+    }
+}
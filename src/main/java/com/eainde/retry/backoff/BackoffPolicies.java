@@ -0,0 +1,51 @@
+package com.eainde.retry.backoff;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+
+import java.time.Duration;
+
+/**
+ * Builds the {@link BackoffPolicy} described by a {@code backoff} settings block.
+ */
+public final class BackoffPolicies {
+
+    private static final Duration DEFAULT_DECORRELATED_CAP = Duration.ofDays(1);
+
+    private BackoffPolicies() {
+    }
+
+    /**
+     * @param settings The global or handler-specific backoff settings.
+     * @param properties The retry properties, for the fallback initial interval.
+     * @return The policy, capped at {@code max-interval} if one is set.
+     */
+    public static BackoffPolicy create(KafkaRetryProperties.Backoff settings, KafkaRetryProperties properties) {
+        Duration initialInterval = initialInterval(settings, properties);
+        Duration maxInterval = settings.getMaxInterval();
+        BackoffPolicy exponential = capped(new ExponentialBackoffPolicy(initialInterval, settings.getMultiplier()), maxInterval);
+        return switch (settings.getType()) {
+            case EXPONENTIAL -> exponential;
+            case FULL_JITTER -> new FullJitterBackoffPolicy(exponential);
+            case DECORRELATED_JITTER -> new DecorrelatedJitterBackoffPolicy(initialInterval,
+                    maxInterval != null ? maxInterval : DEFAULT_DECORRELATED_CAP);
+            case FIXED -> capped(new FixedBackoffPolicy(initialInterval), maxInterval);
+        };
+    }
+
+    /**
+     * @param settings The global or handler-specific backoff settings.
+     * @param properties The retry properties.
+     * @return The first retry interval those settings resolve to.
+     */
+    public static Duration initialInterval(KafkaRetryProperties.Backoff settings, KafkaRetryProperties properties) {
+        if (settings.getInitialInterval() != null) {
+            return settings.getInitialInterval();
+        }
+        Duration global = properties.getBackoff().getInitialInterval();
+        return global != null ? global : Duration.ofMinutes(properties.getInitialIntervalMinutes());
+    }
+
+    private static BackoffPolicy capped(BackoffPolicy policy, Duration maxInterval) {
+        return maxInterval != null ? new CappedBackoffPolicy(policy, maxInterval) : policy;
+    }
+}
@@ -0,0 +1,26 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+
+/**
+ * Decides how long a failed message waits before its next retry.
+ *
+ * The scheduler asks the policy once per failed attempt and stores the result as the message's
+ * next attempt time, so the database only compares timestamps and never evaluates the formula.
+ * Implementations must be thread-safe: attempts of the same handler fail concurrently.
+ *
+ * Define a {@code BackoffPolicy} bean to replace the configured default for every handler;
+ * a handler mapping with its own {@code backoff} settings still takes precedence.
+ */
+@FunctionalInterface
+public interface BackoffPolicy {
+
+    /**
+     * @param retryCount The number of failed retries of the message so far, including the one
+     *                   that just failed; always at least 1.
+     * @param previousDelay The delay that preceded the attempt that just failed, or null if the
+     *                      message was attempted for the first time.
+     * @return The delay until the next attempt, never negative.
+     */
+    Duration nextDelay(int retryCount, Duration previousDelay);
+}
@@ -0,0 +1,24 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+
+/**
+ * Limits the delay of another policy, so late retries wait at most {@code maxInterval}
+ * instead of days.
+ */
+public class CappedBackoffPolicy implements BackoffPolicy {
+
+    private final BackoffPolicy delegate;
+    private final Duration maxInterval;
+
+    public CappedBackoffPolicy(BackoffPolicy delegate, Duration maxInterval) {
+        this.delegate = delegate;
+        this.maxInterval = maxInterval;
+    }
+
+    @Override
+    public Duration nextDelay(int retryCount, Duration previousDelay) {
+        Duration delay = delegate.nextDelay(retryCount, previousDelay);
+        return delay.compareTo(maxInterval) > 0 ? maxInterval : delay;
+    }
+}
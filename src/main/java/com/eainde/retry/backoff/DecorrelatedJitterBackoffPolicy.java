@@ -0,0 +1,35 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Waits a random delay between the base interval and three times the previous delay, at most
+ * the cap ("decorrelated jitter"). Delays still grow over time, but each message follows its own
+ * random path, so retries that started together drift apart.
+ */
+public class DecorrelatedJitterBackoffPolicy implements BackoffPolicy {
+
+    private final Duration base;
+    private final Duration cap;
+
+    /**
+     * @param base The shortest delay, also used when there is no previous delay.
+     * @param cap The longest delay.
+     */
+    public DecorrelatedJitterBackoffPolicy(Duration base, Duration cap) {
+        this.base = base.isNegative() ? Duration.ZERO : base;
+        this.cap = cap.compareTo(this.base) < 0 ? this.base : cap;
+    }
+
+    @Override
+    public Duration nextDelay(int retryCount, Duration previousDelay) {
+        long lower = base.toMillis();
+        long previous = previousDelay != null ? Math.max(previousDelay.toMillis(), lower) : lower;
+        long upper = (long) Math.min((double) previous * 3, cap.toMillis());
+        if (upper <= lower) {
+            return Delays.ofMillis(Math.min(lower, cap.toMillis()));
+        }
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(lower, upper + 1));
+    }
+}
@@ -0,0 +1,28 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+
+/**
+ * Conversions shared by the backoff policies.
+ */
+final class Delays {
+
+    /**
+     * Longer delays are clamped, so a runaway exponent cannot overflow the next attempt time.
+     */
+    static final Duration MAX_DELAY = Duration.ofDays(3650);
+
+    private Delays() {
+    }
+
+    /**
+     * @param millis A delay computed in floating point; may be huge or not a number.
+     * @return The delay, between zero and {@link #MAX_DELAY}.
+     */
+    static Duration ofMillis(double millis) {
+        if (Double.isNaN(millis) || millis <= 0) {
+            return Duration.ZERO;
+        }
+        return millis >= MAX_DELAY.toMillis() ? MAX_DELAY : Duration.ofMillis((long) millis);
+    }
+}
@@ -0,0 +1,23 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+
+/**
+ * Waits {@code initialInterval * multiplier^retryCount}. With a multiplier of 2 this is the
+ * library's original schedule (5m initial interval: 10m, 20m, 40m, ...).
+ */
+public class ExponentialBackoffPolicy implements BackoffPolicy {
+
+    private final Duration initialInterval;
+    private final double multiplier;
+
+    public ExponentialBackoffPolicy(Duration initialInterval, double multiplier) {
+        this.initialInterval = initialInterval;
+        this.multiplier = Math.max(1.0, multiplier);
+    }
+
+    @Override
+    public Duration nextDelay(int retryCount, Duration previousDelay) {
+        return Delays.ofMillis(initialInterval.toMillis() * Math.pow(multiplier, retryCount));
+    }
+}
@@ -0,0 +1,20 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+
+/**
+ * Waits the same interval before every retry.
+ */
+public class FixedBackoffPolicy implements BackoffPolicy {
+
+    private final Duration interval;
+
+    public FixedBackoffPolicy(Duration interval) {
+        this.interval = interval.isNegative() ? Duration.ZERO : interval;
+    }
+
+    @Override
+    public Duration nextDelay(int retryCount, Duration previousDelay) {
+        return interval;
+    }
+}
@@ -0,0 +1,27 @@
+package com.eainde.retry.backoff;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Waits a uniformly random delay between zero and the delay of another policy ("full jitter").
+ * Messages that failed together, for example during the same outage, are spread over the whole
+ * interval instead of all coming due at the same moment.
+ */
+public class FullJitterBackoffPolicy implements BackoffPolicy {
+
+    private final BackoffPolicy ceiling;
+
+    /**
+     * @param ceiling The policy whose delay is the upper bound, usually exponential.
+     */
+    public FullJitterBackoffPolicy(BackoffPolicy ceiling) {
+        this.ceiling = ceiling;
+    }
+
+    @Override
+    public Duration nextDelay(int retryCount, Duration previousDelay) {
+        long bound = ceiling.nextDelay(retryCount, previousDelay).toMillis();
+        return bound > 0 ? Duration.ofMillis(ThreadLocalRandom.current().nextLong(bound + 1)) : Duration.ZERO;
+    }
+}
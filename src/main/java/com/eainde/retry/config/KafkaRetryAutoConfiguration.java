@@ -3,30 +3,58 @@ package com.eainde.retry.config;
 import com.eainde.retry.ExceptionRetryabilityChecker;
 import com.eainde.retry.RetryOrchestrator;
 import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.backoff.BackoffPolicies;
+import com.eainde.retry.backoff.BackoffPolicy;
+import com.eainde.retry.model.FailedMessageIdGenerator;
+import com.eainde.retry.repository.FailedMessageClaimer;
+import com.eainde.retry.repository.FailedMessageReader;
 import com.eainde.retry.repository.FailedMessageRepository;
+import com.eainde.retry.repository.FailedMessageStatusWriter;
+import com.eainde.retry.scheduler.NearTermRetryTimer;
+import com.eainde.retry.scheduler.RetryDispatcher;
+import com.eainde.retry.scheduler.RetryPollingLoop;
 import com.eainde.retry.scheduler.RetryScheduler;
+import com.eainde.retry.service.FailedMessageWriteBehindBuffer;
+import com.eainde.retry.service.InProcessRetryTier;
 import com.eainde.retry.service.KafkaRetryService;
 import com.eainde.retry.service.RetryMessageHandler;
+import com.eainde.retry.topic.RetryTopicListener;
+import com.eainde.retry.topic.RetryTopicPublisher;
+import net.javacrumbs.shedlock.core.DefaultLockingTaskExecutor;
 import net.javacrumbs.shedlock.core.LockProvider;
+import net.javacrumbs.shedlock.core.LockingTaskExecutor;
 import net.javacrumbs.shedlock.provider.jdbctemplate.JdbcTemplateLockProvider;
 import net.javacrumbs.shedlock.spring.annotation.EnableSchedulerLock;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.hibernate.cfg.AvailableSettings;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
 
 import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
 
 @ConditionalOnProperty(name = "kafka.retry.enabled", havingValue = "true")
 @EnableConfigurationProperties(KafkaRetryProperties.class)
-@EnableJpaRepositories(basePackages = "com.example.kafkaretry.repository")
-@EntityScan(basePackages = "com.example.kafkaretry.model")
+@EnableJpaRepositories(basePackages = "com.eainde.retry.repository")
+@EntityScan(basePackages = "com.eainde.retry.model")
 @EnableScheduling
 @EnableSchedulerLock(defaultLockAtMostFor = "10m")
 public class KafkaRetryAutoConfiguration {
@@ -49,6 +77,81 @@ public class KafkaRetryAutoConfiguration {
         );
     }
 
+    /**
+     * Creates the executor the scheduler uses to run its job under the ShedLock lock.
+     * Used when {@code kafka.retry.coordination.mode} is SHEDLOCK.
+     *
+     * @param lockProvider The configured ShedLock LockProvider.
+     * @return A LockingTaskExecutor bean.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public LockingTaskExecutor lockingTaskExecutor(LockProvider lockProvider) {
+        return new DefaultLockingTaskExecutor(lockProvider);
+    }
+
+    /**
+     * Creates the claimer that lets every node poll concurrently by claiming disjoint batches.
+     * Used when {@code kafka.retry.coordination.mode} is CLAIM.
+     *
+     * @param dataSource The application's main data source.
+     * @param properties The configured retry properties.
+     * @return The FailedMessageClaimer bean.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public FailedMessageClaimer failedMessageClaimer(DataSource dataSource, KafkaRetryProperties properties) {
+        KafkaRetryProperties.Coordination coordination = properties.getCoordination();
+        String nodeId = StringUtils.hasText(coordination.getNodeId())
+                ? coordination.getNodeId()
+                : ManagementFactory.getRuntimeMXBean().getName();
+        return new FailedMessageClaimer(new JdbcTemplate(dataSource), nodeId, coordination.getLeaseDuration());
+    }
+
+    /**
+     * Enables Hibernate JDBC batching so that inserts and updates of failed messages are
+     * grouped into batches. Values already set by the application are left untouched.
+     * Also passes the id allocation size to {@link FailedMessageIdGenerator}.
+     *
+     * @param properties The configured retry properties.
+     * @return A customizer applied to the application's Hibernate properties.
+     */
+    @Bean
+    public HibernatePropertiesCustomizer kafkaRetryHibernatePropertiesCustomizer(KafkaRetryProperties properties) {
+        return hibernateProperties -> {
+            hibernateProperties.putIfAbsent(AvailableSettings.STATEMENT_BATCH_SIZE, properties.getJdbcBatchSize());
+            hibernateProperties.putIfAbsent(AvailableSettings.ORDER_UPDATES, true);
+            hibernateProperties.putIfAbsent(AvailableSettings.ORDER_INSERTS, true);
+            hibernateProperties.put(FailedMessageIdGenerator.ALLOCATION_SIZE_SETTING, properties.getIdAllocationSize());
+        };
+    }
+
+    /**
+     * Creates the writer that persists the outcome of a retry batch with JDBC batch updates.
+     *
+     * @param dataSource The application's main data source.
+     * @param properties The configured retry properties.
+     * @return The FailedMessageStatusWriter bean.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public FailedMessageStatusWriter failedMessageStatusWriter(DataSource dataSource, KafkaRetryProperties properties) {
+        return new FailedMessageStatusWriter(new JdbcTemplate(dataSource), properties.getJdbcBatchSize());
+    }
+
+    /**
+     * Creates the reader the scheduler polls with. It selects only retry metadata and fetches
+     * payloads in bulk for the messages that are dispatched.
+     *
+     * @param dataSource The application's DataSource.
+     * @return The FailedMessageReader bean.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public FailedMessageReader failedMessageReader(DataSource dataSource) {
+        return new FailedMessageReader(new JdbcTemplate(dataSource));
+    }
+
     /**
      * NEW: Creates the central resolver bean for mapping topics to handlers.
      */
@@ -58,22 +161,123 @@ public class KafkaRetryAutoConfiguration {
         return new RetryQualifierResolver(properties);
     }
 
+    /**
+     * Creates the worker pool that runs retry handlers concurrently.
+     * The pool is shut down together with the application context.
+     *
+     * @param properties The configured retry properties.
+     * @return The RetryDispatcher bean.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public RetryDispatcher retryDispatcher(KafkaRetryProperties properties) {
+        return new RetryDispatcher(properties);
+    }
+
+    /**
+     * Creates the in-memory timing wheel for near-term retries when
+     * {@code kafka.retry.timing-wheel.enabled} is true. Like the scheduler, it requires a
+     * RetryMessageHandler, since held messages are retried by this node only.
+     *
+     * @param properties The configured retry properties.
+     * @param claimer The claimer used to hold rows for this node and to rebuild the wheel.
+     * @param reader The reader used to load the rows when rebuilding the wheel.
+     * @return The NearTermRetryTimer bean.
+     */
+    @Bean
+    @ConditionalOnBean(RetryMessageHandler.class)
+    @ConditionalOnProperty(name = "kafka.retry.timing-wheel.enabled", havingValue = "true")
+    @ConditionalOnMissingBean
+    public NearTermRetryTimer nearTermRetryTimer(KafkaRetryProperties properties,
+                                                 FailedMessageClaimer claimer,
+                                                 FailedMessageReader reader) {
+        return new NearTermRetryTimer(properties, claimer, reader);
+    }
+
+    /**
+     * Creates the default backoff policy from {@code kafka.retry.backoff}. Define a BackoffPolicy
+     * bean to use a custom strategy instead.
+     *
+     * @param properties The configured retry properties.
+     * @return The BackoffPolicy bean.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public BackoffPolicy backoffPolicy(KafkaRetryProperties properties) {
+        return BackoffPolicies.create(properties.getBackoff(), properties);
+    }
+
     /**
      * Creates the RetryScheduler bean if a RetryMessageHandler is defined by the consuming application.
      * The scheduler is the core component that finds and processes failed messages.
      *
-     * @param messageHandler The custom implementation provided by the consuming service.
-     * @param repository The repository for accessing failed messages.
+     * @param messageHandlers The RetryMessageHandler beans provided by the consuming service, by bean name.
+     * @param defaultHandler The handler for messages saved without a qualifier, if there is a unique one.
+     * @param reader The reader that polls due messages and fetches their payloads.
      * @param properties The configured retry properties.
+     * @param dispatcher The worker pool that runs the handler for each message.
+     * @param statusWriter The writer that persists the outcome of each batch.
+     * @param claimer The claimer used in CLAIM coordination mode.
+     * @param lockingTaskExecutor The ShedLock executor used in SHEDLOCK coordination mode.
+     * @param nearTermRetryTimer The timing wheel for near-term retries, if enabled.
+     * @param backoffPolicy The delay between retries of handlers without their own backoff settings.
      * @return The RetryScheduler bean.
      */
     @Bean
     @ConditionalOnBean(RetryMessageHandler.class)
     @ConditionalOnMissingBean
-    public RetryScheduler retryScheduler(RetryMessageHandler messageHandler,
-                                         FailedMessageRepository repository,
-                                         KafkaRetryProperties properties) {
-        return new RetryScheduler(messageHandler, repository, properties);
+    public RetryScheduler retryScheduler(Map<String, RetryMessageHandler> messageHandlers,
+                                         ObjectProvider<RetryMessageHandler> defaultHandler,
+                                         FailedMessageReader reader,
+                                         KafkaRetryProperties properties,
+                                         RetryDispatcher dispatcher,
+                                         FailedMessageStatusWriter statusWriter,
+                                         FailedMessageClaimer claimer,
+                                         LockingTaskExecutor lockingTaskExecutor,
+                                         ObjectProvider<NearTermRetryTimer> nearTermRetryTimer,
+                                         BackoffPolicy backoffPolicy) {
+        return new RetryScheduler(messageHandlers, defaultHandler.getIfUnique(), reader, properties, dispatcher, statusWriter,
+                claimer, lockingTaskExecutor, nearTermRetryTimer.getIfAvailable(), backoffPolicy);
+    }
+
+    /**
+     * Creates the continuous polling loop when {@code kafka.retry.polling.mode} is CONTINUOUS.
+     * The cron trigger of the RetryScheduler is then inactive.
+     *
+     * @param retryScheduler The scheduler that runs each fetch-and-dispatch cycle.
+     * @param repository The repository used to find the earliest pending retry.
+     * @param properties The configured retry properties.
+     * @return The RetryPollingLoop bean.
+     */
+    @Bean
+    @ConditionalOnBean(RetryScheduler.class)
+    @ConditionalOnProperty(name = "kafka.retry.polling.mode", havingValue = "CONTINUOUS")
+    @ConditionalOnMissingBean
+    public RetryPollingLoop retryPollingLoop(RetryScheduler retryScheduler,
+                                             FailedMessageRepository repository,
+                                             KafkaRetryProperties properties) {
+        return new RetryPollingLoop(retryScheduler, repository, properties);
+    }
+
+    /**
+     * Creates the asynchronous write-behind queue when {@code kafka.retry.write-behind.enabled}
+     * is true. It is flushed when the application context shuts down.
+     *
+     * @param repository The repository for persisting failed messages.
+     * @param transactionManager The transaction manager used for each batch insert.
+     * @param properties The configured retry properties.
+     * @param nearTermRetryTimer The timing wheel for reserved messages, if enabled.
+     * @return The FailedMessageWriteBehindBuffer bean.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "kafka.retry.write-behind.enabled", havingValue = "true")
+    @ConditionalOnMissingBean
+    public FailedMessageWriteBehindBuffer failedMessageWriteBehindBuffer(FailedMessageRepository repository,
+                                                                         PlatformTransactionManager transactionManager,
+                                                                         KafkaRetryProperties properties,
+                                                                         ObjectProvider<NearTermRetryTimer> nearTermRetryTimer) {
+        return new FailedMessageWriteBehindBuffer(repository, new TransactionTemplate(transactionManager),
+                properties, nearTermRetryTimer.getIfAvailable());
     }
 
     /**
@@ -81,12 +285,67 @@ public class KafkaRetryAutoConfiguration {
      * for consuming applications to save new failed messages.
      *
      * @param repository The repository for persisting failed messages.
+     * @param properties The configuration properties, which contain the compression settings.
+     * @param nearTermRetryTimer The timing wheel for immediate first retries, if enabled.
+     * @param writeBehindBuffer The asynchronous insert queue, if enabled.
+     * @param retryTopicPublisher The delay topic publisher, if retry topics are enabled.
      * @return The KafkaRetryService bean.
      */
     @Bean
     @ConditionalOnMissingBean
-    public KafkaRetryService kafkaRetryService(FailedMessageRepository repository) {
-        return new KafkaRetryService(repository);
+    public KafkaRetryService kafkaRetryService(FailedMessageRepository repository,
+                                               KafkaRetryProperties properties,
+                                               ObjectProvider<NearTermRetryTimer> nearTermRetryTimer,
+                                               ObjectProvider<FailedMessageWriteBehindBuffer> writeBehindBuffer,
+                                               ObjectProvider<RetryTopicPublisher> retryTopicPublisher) {
+        return new KafkaRetryService(repository, properties, nearTermRetryTimer.getIfAvailable(),
+                writeBehindBuffer.getIfAvailable(), retryTopicPublisher.getIfAvailable());
+    }
+
+    /**
+     * Creates the publisher of the delay and dead-letter topics when
+     * {@code kafka.retry.retry-topics.enabled} is true. It connects with the application's
+     * {@code spring.kafka} producer settings, with byte array serializers.
+     *
+     * @param kafkaProperties The Spring Boot Kafka settings, if configured.
+     * @param properties The configured retry properties.
+     * @return The RetryTopicPublisher bean.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "kafka.retry.retry-topics.enabled", havingValue = "true")
+    @ConditionalOnMissingBean
+    public RetryTopicPublisher retryTopicPublisher(ObjectProvider<KafkaProperties> kafkaProperties,
+                                                   KafkaRetryProperties properties) {
+        Map<String, Object> producerProperties = new HashMap<>(
+                kafkaProperties.getIfAvailable(KafkaProperties::new).buildProducerProperties());
+        producerProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        producerProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        return new RetryTopicPublisher(new DefaultKafkaProducerFactory<>(producerProperties), properties);
+    }
+
+    /**
+     * Creates the consumers of the delay topics when {@code kafka.retry.retry-topics.enabled} is true.
+     * They connect with the application's {@code spring.kafka} consumer settings, in the group
+     * {@code kafka.retry.retry-topics.group-id}.
+     *
+     * @param kafkaProperties The Spring Boot Kafka settings, if configured.
+     * @param messageHandlers The RetryMessageHandler beans provided by the consuming service, by bean name.
+     * @param retryabilityChecker The service for checking if an exception is retryable.
+     * @param retryTopicPublisher Publishes messages that fail again to their next topic.
+     * @param properties The configured retry properties.
+     * @return The RetryTopicListener bean.
+     */
+    @Bean
+    @ConditionalOnBean(RetryMessageHandler.class)
+    @ConditionalOnProperty(name = "kafka.retry.retry-topics.enabled", havingValue = "true")
+    @ConditionalOnMissingBean
+    public RetryTopicListener retryTopicListener(ObjectProvider<KafkaProperties> kafkaProperties,
+                                                 Map<String, RetryMessageHandler> messageHandlers,
+                                                 ExceptionRetryabilityChecker retryabilityChecker,
+                                                 RetryTopicPublisher retryTopicPublisher,
+                                                 KafkaRetryProperties properties) {
+        return new RetryTopicListener(kafkaProperties.getIfAvailable(KafkaProperties::new).buildConsumerProperties(),
+                messageHandlers, retryabilityChecker, retryTopicPublisher, properties);
     }
 
     /**
@@ -113,14 +372,39 @@ public class KafkaRetryAutoConfiguration {
      * @param retryService The service for database operations.
      * @param qualifierResolver The service for mapping topics to handler beans.
      * @param retryabilityChecker The service for checking if an exception is retryable.
+     * @param inProcessRetryTier The in-memory first retry tier, if enabled.
      * @return An instance of RetryOrchestrator.
      */
     @Bean
     @ConditionalOnMissingBean
     public RetryOrchestrator retryOrchestrator(KafkaRetryService retryService,
                                                RetryQualifierResolver qualifierResolver,
-                                               ExceptionRetryabilityChecker retryabilityChecker) {
-        return new RetryOrchestrator(retryService, qualifierResolver, retryabilityChecker);
+                                               ExceptionRetryabilityChecker retryabilityChecker,
+                                               ObjectProvider<InProcessRetryTier> inProcessRetryTier) {
+        return new RetryOrchestrator(retryService, qualifierResolver, retryabilityChecker,
+                inProcessRetryTier.getIfAvailable());
+    }
+
+    /**
+     * Creates the in-memory first retry tier when {@code kafka.retry.in-process.enabled} is true.
+     * Retryable failures are retried a few times on its worker pool, and only the messages that
+     * still fail are stored. Messages still held on shutdown are stored.
+     *
+     * @param messageHandlers The RetryMessageHandler beans provided by the consuming service, by bean name.
+     * @param retryService The service that stores the messages that still fail.
+     * @param retryabilityChecker The service for checking if an exception is retryable.
+     * @param properties The configured retry properties.
+     * @return The InProcessRetryTier bean.
+     */
+    @Bean
+    @ConditionalOnBean(RetryMessageHandler.class)
+    @ConditionalOnProperty(name = "kafka.retry.in-process.enabled", havingValue = "true")
+    @ConditionalOnMissingBean
+    public InProcessRetryTier inProcessRetryTier(Map<String, RetryMessageHandler> messageHandlers,
+                                                 KafkaRetryService retryService,
+                                                 ExceptionRetryabilityChecker retryabilityChecker,
+                                                 KafkaRetryProperties properties) {
+        return new InProcessRetryTier(messageHandlers, retryService, retryabilityChecker, properties);
     }
 }
 
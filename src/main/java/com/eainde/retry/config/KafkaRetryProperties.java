@@ -1,9 +1,12 @@
 package com.eainde.retry.config;
 
 import com.eainde.retry.HandlerConfig;
+import com.eainde.retry.model.PayloadCodec;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -23,7 +26,8 @@ public class KafkaRetryProperties {
     private boolean enabled = false;
 
     /**
-     * The initial interval in minutes for the first retry.
+     * The initial interval in minutes for the first retry. Used when
+     * {@code backoff.initial-interval}, which takes any duration, is not set.
      */
     private int initialIntervalMinutes = 5;
 
@@ -42,6 +46,79 @@ public class KafkaRetryProperties {
      * The maximum number of records to fetch from the database in a single retry batch.
      */
     private int batchSize = 100;
+
+    /**
+     * The number of statements Hibernate and the status writer group into one JDBC batch.
+     */
+    private int jdbcBatchSize = 50;
+
+    /**
+     * How many ids Hibernate reserves per call to failed_messages_seq.
+     * Must match the sequence's INCREMENT BY.
+     */
+    private int idAllocationSize = 50;
+
+    /**
+     * Settings for how the scheduler decides when to poll for due messages.
+     */
+    private Polling polling = new Polling();
+
+    /**
+     * Settings for the worker pool that runs the handlers of a retry batch.
+     */
+    private Dispatch dispatch = new Dispatch();
+
+    /**
+     * Settings for how the nodes of a cluster share the retry work.
+     */
+    private Coordination coordination = new Coordination();
+
+    /**
+     * Settings for the in-memory timing wheel that fires near-term retries on time.
+     */
+    private TimingWheel timingWheel = new TimingWheel();
+
+    /**
+     * Settings for the asynchronous insert queue used when capturing failed messages.
+     */
+    private WriteBehind writeBehind = new WriteBehind();
+
+    /**
+     * Settings for the in-memory retries made before a failed message is stored.
+     */
+    private InProcess inProcess = new InProcess();
+
+    /**
+     * Settings for storing retries in Kafka delay topics instead of the failed_messages table.
+     */
+    private RetryTopics retryTopics = new RetryTopics();
+
+    /**
+     * Settings for compressing payloads before they are stored.
+     */
+    private Compression compression = new Compression();
+
+    /**
+     * Settings for the per-handler circuit breakers that pause retries while a downstream is down.
+     */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * Settings for the per-handler token buckets that cap how fast retries are sent downstream.
+     */
+    private RateLimit rateLimit = new RateLimit();
+
+    /**
+     * Settings for how long a message waits between retries. A handler mapping can replace them.
+     */
+    private Backoff backoff = new Backoff();
+
+    /**
+     * How many exceptions of a failure's cause chain are checked against the exception lists,
+     * starting with the cause of the messaging exception.
+     */
+    private int maxCauseDepth = 10;
+
     // Global exception lists that act as a default or fallback.
     private List<String> nonRetryableExceptions = new ArrayList<>();
     private List<String> retryableExceptions = new ArrayList<>();
@@ -52,6 +129,477 @@ public class KafkaRetryProperties {
      */
     private Map<String, Map<String, HandlerConfig>> handlerMappings = new HashMap<>();
 
+    /**
+     * How many topic-to-handler resolutions are remembered per context. Once the cache is full
+     * a topic that was not used recently is evicted.
+     */
+    private int topicCacheSize = 10000;
+
+    /**
+     * What triggers a poll for due messages.
+     */
+    public enum PollingMode {
+        /**
+         * One batch per tick of {@code kafka.retry.cron}.
+         */
+        CRON,
+
+        /**
+         * A dedicated loop that polls again immediately while full batches come back and backs off
+         * while the queue is empty.
+         */
+        CONTINUOUS
+    }
+
+    /**
+     * Controls the adaptive interval of the continuous polling loop.
+     */
+    @Data
+    public static class Polling {
+
+        /**
+         * Whether polls are triggered by the cron expression or by a continuous loop.
+         */
+        private PollingMode mode = PollingMode.CRON;
+
+        /**
+         * The shortest pause between polls once a batch comes back less than full.
+         */
+        private Duration minIdleInterval = Duration.ofMillis(500);
+
+        /**
+         * The longest pause between polls while no messages are due.
+         */
+        private Duration maxIdleInterval = Duration.ofMinutes(1);
+
+        /**
+         * The factor by which the pause grows after each empty poll.
+         */
+        private double backoffMultiplier = 2.0;
+    }
+
+    /**
+     * The kind of threads used to run retry handlers.
+     */
+    public enum ThreadMode {
+        /**
+         * A fixed pool of platform threads sized by {@link Dispatch#getPoolSize()}.
+         */
+        PLATFORM,
+
+        /**
+         * Virtual threads. Requires a Java 21+ runtime.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * Controls how a fetched batch is fanned out to the retry handlers.
+     */
+    @Data
+    public static class Dispatch {
+
+        /**
+         * Whether handlers run on platform or virtual threads.
+         */
+        private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+        /**
+         * The number of platform worker threads. Ignored for virtual threads.
+         */
+        private int poolSize = 8;
+
+        /**
+         * The maximum number of messages a single handler processes concurrently.
+         */
+        private int maxInFlightPerHandler = 4;
+
+        /**
+         * The maximum number of virtual threads running handler code at the same time.
+         * Only used when {@code thread-mode} is VIRTUAL.
+         */
+        private int virtualThreadConcurrency = 1000;
+
+        /**
+         * How long a scheduler run waits for its batch to finish. After that, messages not yet
+         * started are left for the next run, while attempts in flight are still waited for until
+         * {@code coordination.lease-duration} has passed since the batch started. Keep this plus
+         * the slowest handler attempt below the lease and the scheduler's ShedLock lockAtMostFor
+         * so the lock is never released mid-batch.
+         */
+        private Duration batchTimeout = Duration.ofMinutes(4);
+    }
+
+    /**
+     * How nodes in a cluster avoid retrying the same message twice.
+     */
+    public enum CoordinationMode {
+        /**
+         * A cluster-wide ShedLock lock; only one node retries at a time.
+         */
+        SHEDLOCK,
+
+        /**
+         * Every node polls and claims its own rows with SELECT ... FOR UPDATE SKIP LOCKED.
+         */
+        CLAIM
+    }
+
+    /**
+     * Controls how the retry work is shared across the nodes of a cluster.
+     */
+    @Data
+    public static class Coordination {
+
+        /**
+         * Whether nodes take turns under a ShedLock lock or claim disjoint batches concurrently.
+         */
+        private CoordinationMode mode = CoordinationMode.SHEDLOCK;
+
+        /**
+         * Identifies this node in the claimed_by column. Defaults to the JVM name (pid@host).
+         */
+        private String nodeId;
+
+        /**
+         * How long a claim is held before other nodes may take the row over. Keep this above
+         * {@code dispatch.batch-timeout} so a live node never loses rows it is still working on.
+         */
+        private Duration leaseDuration = Duration.ofMinutes(5);
+    }
+
+    /**
+     * Controls the in-memory timing wheel for retries that are due within a short horizon.
+     * Requires {@code coordination.mode=CLAIM}.
+     */
+    @Data
+    public static class TimingWheel {
+
+        /**
+         * Whether near-term retries are fired from memory instead of waiting for the next poll.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Messages due within this window are held in the wheel. Rows further out are polled.
+         */
+        private Duration horizon = Duration.ofMinutes(2);
+
+        /**
+         * The resolution of the wheel; retries fire at most one tick after they are due.
+         */
+        private Duration tick = Duration.ofMillis(100);
+
+        /**
+         * The number of buckets per wheel level.
+         */
+        private int wheelSize = 64;
+
+        /**
+         * The maximum number of messages held in memory. Further messages fall back to polling.
+         */
+        private int maxEntries = 10000;
+    }
+
+    /**
+     * What the write-behind buffer does when it is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait up to {@code block-timeout} for space, then insert on the calling thread.
+         */
+        BLOCK,
+
+        /**
+         * Insert on the calling thread straight away.
+         */
+        CALLER_RUNS,
+
+        /**
+         * Log and discard the message.
+         */
+        DROP
+    }
+
+    /**
+     * Controls the asynchronous write-behind queue for new failed messages.
+     */
+    @Data
+    public static class WriteBehind {
+
+        /**
+         * Whether failed messages are inserted asynchronously in batches.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The maximum number of messages waiting to be inserted.
+         */
+        private int capacity = 10000;
+
+        /**
+         * The maximum number of messages inserted in one transaction.
+         */
+        private int flushSize = 500;
+
+        /**
+         * The longest a queued message waits for its batch to fill before it is inserted.
+         */
+        private Duration flushInterval = Duration.ofMillis(200);
+
+        /**
+         * What to do when the queue is full.
+         */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+        /**
+         * How long the BLOCK policy waits for space.
+         */
+        private Duration blockTimeout = Duration.ofSeconds(1);
+
+        /**
+         * How long shutdown waits for the writer to drain the queue.
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(30);
+    }
+
+    /**
+     * Controls the optional first retry tier. A retryable failure is first retried in memory a few
+     * times on a small worker pool; only messages that still fail are stored for the scheduler.
+     * Held messages are stored on a graceful shutdown but lost if the process crashes, because the
+     * listener has already committed their offsets.
+     */
+    @Data
+    public static class InProcess {
+
+        /**
+         * Whether failures are retried in memory before they are stored.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The number of in-memory attempts per failed message.
+         */
+        private int maxAttempts = 2;
+
+        /**
+         * The delay before the first in-memory attempt.
+         */
+        private Duration initialDelay = Duration.ofMillis(200);
+
+        /**
+         * The factor by which the delay grows before each further attempt.
+         */
+        private double multiplier = 2.0;
+
+        /**
+         * The number of worker threads running in-memory attempts.
+         */
+        private int poolSize = 4;
+
+        /**
+         * The maximum number of messages held in memory. Further failures are stored straight away.
+         */
+        private int capacity = 1000;
+
+        /**
+         * How long shutdown waits for running attempts before storing every message still held.
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+    }
+
+    /**
+     * Controls the retry-topic backend. A retryable failure of topic {@code orders} is published
+     * to {@code orders.retry.5s}, then {@code orders.retry.1m}, {@code orders.retry.10m} (the last
+     * tier repeats), and after {@code kafka.retry.max-retries} retries, or on a non-retryable
+     * error, to {@code orders.dlt}. The delay topics must exist, or be auto-created by the broker.
+     */
+    @Data
+    public static class RetryTopics {
+
+        /**
+         * Whether failures are published to delay topics instead of being inserted into the table.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The delay of each tier. The n-th retry goes to the n-th tier, or the last one.
+         */
+        private List<Duration> delays = new ArrayList<>(List.of(
+                Duration.ofSeconds(5), Duration.ofMinutes(1), Duration.ofMinutes(10)));
+
+        /**
+         * Appended to the original topic, followed by the tier's delay, to name a delay topic.
+         */
+        private String retrySuffix = ".retry";
+
+        /**
+         * Appended to the original topic to name its dead-letter topic.
+         */
+        private String dltSuffix = ".dlt";
+
+        /**
+         * The consumer group that reads the delay topics.
+         */
+        private String groupId = "kafka-retry-topics";
+
+        /**
+         * The number of consumers reading the delay topics; useful up to their partition count.
+         */
+        private int concurrency = 1;
+
+        /**
+         * The most records a consumer retries per poll.
+         */
+        private int maxPollRecords = 50;
+
+        /**
+         * The longest a consumer waits in one poll.
+         */
+        private Duration pollTimeout = Duration.ofSeconds(1);
+
+        /**
+         * How long publishing a record to a delay or dead-letter topic may take.
+         */
+        private Duration sendTimeout = Duration.ofSeconds(10);
+    }
+
+    /**
+     * Controls how captured payloads are compressed before they are stored.
+     */
+    @Data
+    public static class Compression {
+
+        /**
+         * The codec for new payloads. Rows keep the codec they were written with.
+         */
+        private PayloadCodec codec = PayloadCodec.NONE;
+
+        /**
+         * Payloads smaller than this are stored uncompressed.
+         */
+        private DataSize threshold = DataSize.ofKilobytes(1);
+
+        /**
+         * The compression level, 1 (fastest) to 9 (smallest).
+         */
+        private int level = 1;
+    }
+
+    /**
+     * Controls the circuit breaker kept for each handler. While a handler's breaker is open its
+     * messages are left in the table untouched, and their retry count is not increased.
+     */
+    @Data
+    public static class CircuitBreaker {
+
+        /**
+         * Whether retries of a failing handler are paused.
+         */
+        private boolean enabled = false;
+
+        /**
+         * The percentage of failed attempts in the sliding window at which the breaker opens.
+         */
+        private int failureRateThreshold = 50;
+
+        /**
+         * The number of most recent attempts of a handler the failure rate is computed over.
+         */
+        private int slidingWindowSize = 20;
+
+        /**
+         * The number of attempts that must be recorded before the failure rate is evaluated.
+         */
+        private int minimumNumberOfCalls = 10;
+
+        /**
+         * How long the breaker stays open before a single probe message is let through.
+         */
+        private Duration waitDurationInOpenState = Duration.ofSeconds(60);
+    }
+
+    /**
+     * How the delay between retries grows.
+     */
+    public enum BackoffType {
+        /**
+         * {@code initial-interval * multiplier^retry_count}.
+         */
+        EXPONENTIAL,
+
+        /**
+         * A random delay between zero and the exponential delay.
+         */
+        FULL_JITTER,
+
+        /**
+         * A random delay between the initial interval and three times the previous delay.
+         */
+        DECORRELATED_JITTER,
+
+        /**
+         * Always the initial interval.
+         */
+        FIXED
+    }
+
+    /**
+     * Controls the delay between retries. The delay is computed when an attempt fails and stored
+     * as the message's next attempt time.
+     */
+    @Data
+    public static class Backoff {
+
+        /**
+         * The shape of the delays.
+         */
+        private BackoffType type = BackoffType.EXPONENTIAL;
+
+        /**
+         * The first retry interval, for example {@code 200ms}, {@code 5s} or {@code 5m}. Unset means
+         * the global {@code backoff.initial-interval}, then {@code initial-interval-minutes}.
+         */
+        private Duration initialInterval;
+
+        /**
+         * The growth factor of the EXPONENTIAL and FULL_JITTER delays.
+         */
+        private double multiplier = 2.0;
+
+        /**
+         * The longest delay between two retries. Unset means uncapped, except for
+         * DECORRELATED_JITTER, which then caps at one day.
+         */
+        private Duration maxInterval;
+    }
+
+    /**
+     * Controls the token bucket kept for each handler. The defaults apply to every handler on its
+     * own, and a handler mapping can override the rate and burst.
+     */
+    @Data
+    public static class RateLimit {
+
+        /**
+         * The sustained number of retry attempts per second of each handler. 0 means unlimited.
+         */
+        private double permitsPerSecond = 0;
+
+        /**
+         * The number of attempts a handler may make back to back after being idle.
+         * Defaults to one second worth of permits.
+         */
+        private Integer burst;
+
+        /**
+         * How far ahead a handler's permits are counted when polling. A poll only takes the rows
+         * that can be attempted within this time; the rest stay unclaimed for a later poll.
+         * Keep this well below {@code dispatch.batch-timeout}.
+         */
+        private Duration lookahead = Duration.ofSeconds(5);
+    }
+
     /**
      * A nested class to hold separate mappings for consumer and producer failures.
      */
@@ -1,29 +1,105 @@
 package com.eainde.retry.model;
 
+import com.eainde.retry.RetryQualifierResolver;
 import jakarta.persistence.*;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "failed_messages")
+@Table(name = "failed_messages", indexes = {
+        // Index columns are resolved by their logical (property) names before the naming strategy applies.
+        // Serves the scheduler's due query: status = 'FAILED' AND next_attempt_at <= :now
+        @Index(name = "idx_failed_messages_due", columnList = "status, nextAttemptAt"),
+        // Serves the per-handler due query: handler_qualifier = :handler AND status = 'FAILED' AND ...
+        @Index(name = "idx_failed_messages_handler_due", columnList = "handlerQualifier, status, nextAttemptAt")
+})
 public class FailedMessage {
 
+    /**
+     * Allocated in blocks from failed_messages_seq (pooled-lo), so inserts can be batched.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @FailedMessageId(sequenceName = "failed_messages_seq")
     private Long id;
 
+    /**
+     * The message as received, encoded with {@link #payloadCodec}; text payloads are UTF-8 encoded first.
+     */
     @Lob
-    @Column(nullable = false, length=10000) // Use a large object type for the payload
-    private String payload;
+    @Column(nullable = false) // Use a large object type for the payload
+    private byte[] payload;
+
+    /**
+     * How {@link #payload} is encoded. Null on rows written before compression was introduced,
+     * which means {@link PayloadCodec#NONE}.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column
+    private PayloadCodec payloadCodec;
+
+    /**
+     * The decoded payload, computed on first access.
+     */
+    @Transient
+    private byte[] decodedPayload;
+
+    /**
+     * The MIME type of the payload, for example {@code application/json} or {@code application/x-protobuf}.
+     */
+    @Column
+    private String contentType;
 
     @Column(nullable = false)
     private int retryCount = 0;
 
+    /**
+     * The retry count the row had when the current attempt started. The outcome of the attempt
+     * is only written if the row still has it, so an attempt whose row was retried by another
+     * node meanwhile cannot overwrite that node's outcome. Null before the first attempt.
+     */
+    @Transient
+    private Integer attemptRetryCount;
+
     @Column
     private LocalDateTime lastAttemptTime;
 
+    /**
+     * When the message becomes due for its next retry. Precomputed in Java so the
+     * due query is a plain index range scan.
+     */
+    @Column
+    private LocalDateTime nextAttemptAt;
+
+    /**
+     * The node currently holding a claim on this message, when claim-based polling is used.
+     */
+    @Column
+    private String claimedBy;
+
+    /**
+     * When the current claim lapses and the message may be claimed by another node.
+     */
+    @Column
+    private LocalDateTime claimExpiresAt;
+
+    /**
+     * The name of the RetryMessageHandler bean that retries this message. Null for messages
+     * saved without one, which go to the default handler.
+     */
+    @Column
+    private String handlerQualifier;
+
+    /**
+     * Whether the message failed while being consumed or produced.
+     */
+    @Enumerated(EnumType.STRING)
+    @Column
+    private RetryQualifierResolver.FailureContext failureContext;
+
     @Enumerated(EnumType.STRING)
     @Column(nullable = false)
     private MessageStatus status = MessageStatus.FAILED;
@@ -47,12 +123,73 @@ public class FailedMessage {
         this.id = id;
     }
 
+    /**
+     * @return The payload decoded as UTF-8 text. Binary handlers should use {@link #getPayloadBuffer()}.
+     */
     public String getPayload() {
-        return payload;
+        byte[] bytes = decodedPayload();
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
     }
 
+    /**
+     * Stores a text payload UTF-8 encoded.
+     */
     public void setPayload(String payload) {
-        this.payload = payload;
+        setPayloadBytes(payload != null ? payload.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    /**
+     * @return A read-only view of the payload as received. Compressed payloads are decompressed
+     * on the first call; uncompressed ones are not copied.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        byte[] bytes = decodedPayload();
+        return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Stores a binary payload as is. The array is not copied and must not be modified afterwards.
+     */
+    public void setPayloadBytes(byte[] payload) {
+        setEncodedPayload(payload, PayloadCodec.NONE);
+    }
+
+    /**
+     * Stores a payload that is already encoded with the given codec.
+     *
+     * @param encodedPayload The bytes to store.
+     * @param codec The codec that produced them.
+     */
+    public void setEncodedPayload(byte[] encodedPayload, PayloadCodec codec) {
+        this.payload = encodedPayload;
+        this.payloadCodec = codec;
+        this.decodedPayload = null;
+    }
+
+    /**
+     * @return false for messages read by the scheduler whose payload has not been fetched yet.
+     */
+    public boolean isPayloadLoaded() {
+        return payload != null;
+    }
+
+    public PayloadCodec getPayloadCodec() {
+        return payloadCodec != null ? payloadCodec : PayloadCodec.NONE;
+    }
+
+    private byte[] decodedPayload() {
+        if (decodedPayload == null && payload != null) {
+            decodedPayload = getPayloadCodec().decode(payload);
+        }
+        return decodedPayload;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
     }
 
     public int getRetryCount() {
@@ -63,6 +200,14 @@ public class FailedMessage {
         this.retryCount = retryCount;
     }
 
+    public Integer getAttemptRetryCount() {
+        return attemptRetryCount;
+    }
+
+    public void setAttemptRetryCount(Integer attemptRetryCount) {
+        this.attemptRetryCount = attemptRetryCount;
+    }
+
     public LocalDateTime getLastAttemptTime() {
         return lastAttemptTime;
     }
@@ -71,6 +216,46 @@ public class FailedMessage {
         this.lastAttemptTime = lastAttemptTime;
     }
 
+    public LocalDateTime getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public String getClaimedBy() {
+        return claimedBy;
+    }
+
+    public void setClaimedBy(String claimedBy) {
+        this.claimedBy = claimedBy;
+    }
+
+    public LocalDateTime getClaimExpiresAt() {
+        return claimExpiresAt;
+    }
+
+    public void setClaimExpiresAt(LocalDateTime claimExpiresAt) {
+        this.claimExpiresAt = claimExpiresAt;
+    }
+
+    public String getHandlerQualifier() {
+        return handlerQualifier;
+    }
+
+    public void setHandlerQualifier(String handlerQualifier) {
+        this.handlerQualifier = handlerQualifier;
+    }
+
+    public RetryQualifierResolver.FailureContext getFailureContext() {
+        return failureContext;
+    }
+
+    public void setFailureContext(RetryQualifierResolver.FailureContext failureContext) {
+        this.failureContext = failureContext;
+    }
+
     public MessageStatus getStatus() {
         return status;
     }
@@ -0,0 +1,28 @@
+package com.eainde.retry.model;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates the id of a {@link FailedMessage} with {@link FailedMessageIdGenerator}.
+ */
+@IdGeneratorType(FailedMessageIdGenerator.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface FailedMessageId {
+
+    /**
+     * The database sequence the ids are allocated from.
+     */
+    String sequenceName();
+
+    /**
+     * How many ids are reserved per sequence call, unless {@value FailedMessageIdGenerator#ALLOCATION_SIZE_SETTING}
+     * is set. Must match the INCREMENT BY of the sequence.
+     */
+    int incrementSize() default 50;
+}
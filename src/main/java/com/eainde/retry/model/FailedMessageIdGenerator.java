@@ -0,0 +1,47 @@
+package com.eainde.retry.model;
+
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.id.enhanced.StandardOptimizerDescriptor;
+import org.hibernate.id.factory.spi.CustomIdGeneratorCreationContext;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.lang.reflect.Member;
+import java.util.Properties;
+
+/**
+ * Sequence-based id generator for {@link FailedMessage} using the pooled-lo optimizer.
+ * Hibernate reserves a block of ids per sequence call, so inserts need no round trip to fetch a
+ * generated key and can be grouped into JDBC batches (IDENTITY disables insert batching).
+ *
+ * Hibernate creates it for an id annotated with {@link FailedMessageId}. The block size is read
+ * from {@value #ALLOCATION_SIZE_SETTING}, which the auto-configuration sets from
+ * {@code kafka.retry.id-allocation-size}, and falls back to {@link FailedMessageId#incrementSize()}.
+ * It must match the INCREMENT BY of the database sequence.
+ */
+public class FailedMessageIdGenerator extends SequenceStyleGenerator {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String ALLOCATION_SIZE_SETTING = "kafka.retry.id-allocation-size";
+
+    public FailedMessageIdGenerator(FailedMessageId config, Member idMember, CustomIdGeneratorCreationContext context) {
+        Properties parameters = new Properties();
+        parameters.setProperty(SEQUENCE_PARAM, config.sequenceName());
+        parameters.setProperty(INCREMENT_PARAM, Integer.toString(config.incrementSize()));
+        configure(context.getProperty().getType(), parameters, context.getServiceRegistry());
+    }
+
+    @Override
+    public void configure(Type type, Properties parameters, ServiceRegistry serviceRegistry) {
+        Object allocationSize = serviceRegistry.getService(ConfigurationService.class)
+                .getSettings()
+                .get(ALLOCATION_SIZE_SETTING);
+        if (allocationSize != null) {
+            parameters.setProperty(INCREMENT_PARAM, allocationSize.toString());
+        }
+        parameters.setProperty(OPT_PARAM, StandardOptimizerDescriptor.POOLED_LO.getExternalName());
+        super.configure(type, parameters, serviceRegistry);
+    }
+}
@@ -0,0 +1,119 @@
+package com.eainde.retry.model;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How a stored payload is encoded. The codec is recorded per row, so rows written with and
+ * without compression can be read side by side.
+ */
+public enum PayloadCodec {
+
+    /**
+     * The payload is stored as received.
+     */
+    NONE {
+        @Override
+        public byte[] encode(byte[] payload, int level) {
+            return payload;
+        }
+
+        @Override
+        public byte[] decode(byte[] stored) {
+            return stored;
+        }
+    },
+
+    /**
+     * Raw DEFLATE ({@link java.util.zip}), prefixed with the uncompressed length as a 4-byte
+     * big-endian int so decoding allocates the output exactly once.
+     */
+    DEFLATE {
+        @Override
+        public byte[] encode(byte[] payload, int level) {
+            // Incompressible input grows slightly; leave room so one pass is enough.
+            return deflate(payload, level, Integer.BYTES + payload.length + payload.length / 1000 + 64);
+        }
+
+        @Override
+        public byte[] decode(byte[] stored) {
+            if (stored.length < Integer.BYTES) {
+                throw new IllegalStateException("Truncated DEFLATE payload: " + stored.length + " bytes");
+            }
+            int length = ByteBuffer.wrap(stored).getInt();
+            if (length < 0) {
+                throw new IllegalStateException("Corrupt DEFLATE payload: negative length " + length);
+            }
+            byte[] payload = new byte[length];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(stored, Integer.BYTES, stored.length - Integer.BYTES);
+                int read = 0;
+                while (read < payload.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(payload, read, payload.length - read);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    read += inflated;
+                }
+                if (read != payload.length) {
+                    throw new IllegalStateException("Truncated DEFLATE payload: expected " + payload.length
+                            + " bytes, got " + read);
+                }
+                if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                    throw new IllegalStateException("Corrupt DEFLATE payload: longer than " + payload.length + " bytes");
+                }
+                return payload;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt DEFLATE payload", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /**
+     * Deflates a payload behind its length prefix, doubling the output buffer whenever it fills up.
+     *
+     * @param initialCapacity The size of the first output buffer, including the prefix.
+     */
+    static byte[] deflate(byte[] payload, int level, int initialCapacity) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteBuffer out = ByteBuffer.allocate(Math.max(Integer.BYTES, initialCapacity));
+            out.putInt(payload.length);
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2);
+                    out.flip();
+                    larger.put(out);
+                    out = larger;
+                }
+                int written = deflater.deflate(out.array(), out.position(), out.remaining());
+                out.position(out.position() + written);
+            }
+            byte[] encoded = new byte[out.position()];
+            System.arraycopy(out.array(), 0, encoded, 0, encoded.length);
+            return encoded;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param payload The payload as received.
+     * @param level The compression level, where the codec has one.
+     * @return The bytes to store.
+     */
+    public abstract byte[] encode(byte[] payload, int level);
+
+    /**
+     * @param stored The stored bytes.
+     * @return The payload as received.
+     */
+    public abstract byte[] decode(byte[] stored);
+}
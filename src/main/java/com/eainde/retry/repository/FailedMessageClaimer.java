@@ -0,0 +1,138 @@
+package com.eainde.retry.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Claims disjoint batches of due messages so that every node in a cluster can poll at the same time.
+ * Candidate rows are locked with {@code FOR UPDATE SKIP LOCKED}, so concurrent pollers skip each
+ * other's rows instead of waiting, and are then stamped with an owner and a lease expiry.
+ * A row whose lease has expired (for example because its owner crashed) is claimable again.
+ * Claims are cleared by {@link FailedMessageStatusWriter} when the outcome is written.
+ * The same mechanism reserves near-term rows for the in-memory timing wheel of a node.
+ *
+ * NOTE: The SQL is written for Oracle DB syntax (12c+). Oracle does not allow
+ * {@code FETCH FIRST} together with {@code FOR UPDATE}, so the batch size is applied through
+ * {@link PreparedStatement#setMaxRows(int)}; only fetched rows are locked.
+ */
+public class FailedMessageClaimer {
+
+    private static final String SELECT_CLAIMABLE_SQL = """
+            SELECT fm.id, fm.next_attempt_at FROM failed_messages fm
+            WHERE fm.status = 'FAILED'
+            AND fm.next_attempt_at <= ?
+            AND fm.retry_count < ?
+            AND (fm.claim_expires_at IS NULL OR fm.claim_expires_at <= ?)
+            AND %s
+            ORDER BY fm.next_attempt_at ASC
+            FOR UPDATE SKIP LOCKED
+            """;
+
+    private static final QualifierFilter ALL_HANDLERS = QualifierFilter.unassigned(List.of());
+
+    private static final String CLAIM_SQL = """
+            UPDATE failed_messages
+            SET claimed_by = ?, claim_expires_at = ?
+            WHERE id = ?
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String nodeId;
+    private final Duration leaseDuration;
+
+    public FailedMessageClaimer(JdbcTemplate jdbcTemplate, String nodeId, Duration leaseDuration) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.nodeId = nodeId;
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * Claims up to {@code limit} due messages for this node.
+     *
+     * @param currentTime The current time to compare against.
+     * @param maxRetries The maximum number of retries allowed.
+     * @param limit The maximum number of rows to claim.
+     * @return The ids of the claimed messages, earliest due first.
+     */
+    @Transactional
+    public List<Long> claimDueMessages(LocalDateTime currentTime, int maxRetries, int limit) {
+        return claim(ALL_HANDLERS, currentTime, currentTime, maxRetries, limit);
+    }
+
+    /**
+     * Claims up to {@code limit} due messages of the handlers selected by the filter.
+     *
+     * @param filter The handler rows to claim from.
+     * @param currentTime The current time to compare against.
+     * @param maxRetries The maximum number of retries allowed.
+     * @param limit The maximum number of rows to claim.
+     * @return The ids of the claimed messages, earliest due first.
+     */
+    @Transactional
+    public List<Long> claimDueMessages(QualifierFilter filter, LocalDateTime currentTime, int maxRetries, int limit) {
+        return claim(filter, currentTime, currentTime, maxRetries, limit);
+    }
+
+    /**
+     * Claims up to {@code limit} messages that are due now or become due by {@code dueBy}.
+     * Each claim lasts until the row's next attempt time (or now, if later) plus the lease
+     * duration, so a row held for a future attempt is not taken over before it is tried.
+     *
+     * @param currentTime The current time.
+     * @param dueBy The latest next attempt time to claim.
+     * @param maxRetries The maximum number of retries allowed.
+     * @param limit The maximum number of rows to claim.
+     * @return The ids of the claimed messages, earliest due first.
+     */
+    @Transactional
+    public List<Long> claimMessagesDueBy(LocalDateTime currentTime, LocalDateTime dueBy, int maxRetries, int limit) {
+        return claim(ALL_HANDLERS, currentTime, dueBy, maxRetries, limit);
+    }
+
+    private List<Long> claim(QualifierFilter filter, LocalDateTime currentTime, LocalDateTime dueBy,
+                             int maxRetries, int limit) {
+        Timestamp now = Timestamp.valueOf(currentTime);
+        List<ClaimCandidate> candidates = jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(SELECT_CLAIMABLE_SQL.formatted(filter.predicate()));
+            ps.setTimestamp(1, Timestamp.valueOf(dueBy));
+            ps.setInt(2, maxRetries);
+            ps.setTimestamp(3, now);
+            filter.bind(ps, 4);
+            ps.setMaxRows(limit);
+            ps.setFetchSize(limit);
+            return ps;
+        }, (rs, rowNum) -> new ClaimCandidate(rs.getLong(1), rs.getTimestamp(2).toLocalDateTime()));
+
+        if (!candidates.isEmpty()) {
+            jdbcTemplate.batchUpdate(CLAIM_SQL, candidates, candidates.size(), (ps, candidate) -> {
+                LocalDateTime leaseStart = candidate.nextAttemptAt().isAfter(currentTime)
+                        ? candidate.nextAttemptAt()
+                        : currentTime;
+                ps.setString(1, nodeId);
+                ps.setTimestamp(2, Timestamp.valueOf(leaseStart.plus(leaseDuration)));
+                ps.setLong(3, candidate.id());
+            });
+        }
+        return candidates.stream().map(ClaimCandidate::id).toList();
+    }
+
+    /**
+     * @return How long a claim is held beyond the time its message becomes due.
+     */
+    public Duration getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    private record ClaimCandidate(long id, LocalDateTime nextAttemptAt) {
+    }
+}
@@ -0,0 +1,181 @@
+package com.eainde.retry.repository;
+
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.model.MessageStatus;
+import com.eainde.retry.model.PayloadCodec;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads failed messages for the scheduler in two steps. Polls select only the retry metadata,
+ * so deciding what to retry never pulls LOB data over the wire; the payloads of the messages
+ * that are actually dispatched are then fetched in bulk with {@code WHERE id IN (...)}.
+ * Messages read here carry no payload until {@link #loadPayloads(Collection)} is called.
+ *
+ * NOTE: The SQL is written for Oracle DB syntax (12c+). Oracle allows at most 1000 expressions
+ * in an IN list, so id lookups are split into chunks of that size.
+ */
+public class FailedMessageReader {
+
+    private static final int MAX_IN_LIST = 1000;
+
+    private static final String METADATA_COLUMNS = """
+            fm.id, fm.retry_count, fm.last_attempt_time, fm.next_attempt_at, fm.claimed_by,
+            fm.claim_expires_at, fm.status, fm.created_at, fm.updated_at, fm.error, fm.content_type,
+            fm.handler_qualifier, fm.failure_context
+            """;
+
+    private static final String SELECT_DUE_SQL = "SELECT " + METADATA_COLUMNS + """
+            FROM failed_messages fm
+            WHERE fm.status = 'FAILED'
+            AND fm.next_attempt_at <= ?
+            AND fm.retry_count < ?
+            AND (fm.claim_expires_at IS NULL OR fm.claim_expires_at <= ?)
+            AND %s
+            ORDER BY fm.next_attempt_at ASC
+            FETCH FIRST ? ROWS ONLY
+            """;
+
+    private static final QualifierFilter ALL_HANDLERS = QualifierFilter.unassigned(List.of());
+
+    private static final String SELECT_BY_IDS_SQL = "SELECT " + METADATA_COLUMNS + "FROM failed_messages fm WHERE fm.id IN (%s)";
+
+    private static final String SELECT_PAYLOADS_SQL = "SELECT fm.id, fm.payload, fm.payload_codec FROM failed_messages fm WHERE fm.id IN (%s)";
+
+    private static final RowMapper<FailedMessage> METADATA_MAPPER = FailedMessageReader::mapMetadata;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public FailedMessageReader(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Finds messages that are due for a retry, without their payloads. Rows held by a live claim
+     * (for example in a node's timing wheel) are skipped.
+     *
+     * @param currentTime The current time to compare against.
+     * @param maxRetries The maximum number of retries allowed.
+     * @param limit The maximum number of rows to fetch.
+     * @return The due messages, earliest due first.
+     */
+    public List<FailedMessage> findDueMessages(LocalDateTime currentTime, int maxRetries, int limit) {
+        return findDueMessages(ALL_HANDLERS, currentTime, maxRetries, limit);
+    }
+
+    /**
+     * Finds the due messages of the handlers selected by the filter, without their payloads.
+     *
+     * @param filter The handler rows to read.
+     * @param currentTime The current time to compare against.
+     * @param maxRetries The maximum number of retries allowed.
+     * @param limit The maximum number of rows to fetch.
+     * @return The due messages, earliest due first.
+     */
+    public List<FailedMessage> findDueMessages(QualifierFilter filter, LocalDateTime currentTime, int maxRetries, int limit) {
+        Timestamp now = Timestamp.valueOf(currentTime);
+        return jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(SELECT_DUE_SQL.formatted(filter.predicate()));
+            ps.setTimestamp(1, now);
+            ps.setInt(2, maxRetries);
+            ps.setTimestamp(3, now);
+            int next = filter.bind(ps, 4);
+            ps.setInt(next, limit);
+            return ps;
+        }, METADATA_MAPPER);
+    }
+
+    /**
+     * Reads the given messages, without their payloads.
+     *
+     * @param ids The ids of the messages.
+     * @return The messages that exist, earliest due first.
+     */
+    public List<FailedMessage> findByIds(Collection<Long> ids) {
+        List<FailedMessage> messages = new ArrayList<>(ids.size());
+        for (List<Long> chunk : chunks(ids)) {
+            messages.addAll(jdbcTemplate.query(inList(SELECT_BY_IDS_SQL, chunk.size()), METADATA_MAPPER, chunk.toArray()));
+        }
+        messages.sort(Comparator.comparing(FailedMessage::getNextAttemptAt,
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+        return messages;
+    }
+
+    /**
+     * Fetches the payloads of the messages that do not carry one yet.
+     *
+     * @param messages The messages about to be handed to a handler.
+     */
+    public void loadPayloads(Collection<FailedMessage> messages) {
+        Map<Long, FailedMessage> missing = new HashMap<>();
+        for (FailedMessage message : messages) {
+            if (!message.isPayloadLoaded()) {
+                missing.put(message.getId(), message);
+            }
+        }
+        for (List<Long> chunk : chunks(missing.keySet())) {
+            jdbcTemplate.query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(inList(SELECT_PAYLOADS_SQL, chunk.size()));
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setLong(i + 1, chunk.get(i));
+                }
+                ps.setFetchSize(chunk.size());
+                return ps;
+            }, rs -> {
+                String codec = rs.getString(3);
+                missing.get(rs.getLong(1)).setEncodedPayload(rs.getBytes(2),
+                        codec != null ? PayloadCodec.valueOf(codec) : PayloadCodec.NONE);
+            });
+        }
+    }
+
+    private static FailedMessage mapMetadata(ResultSet rs, int rowNum) throws SQLException {
+        FailedMessage message = new FailedMessage();
+        message.setId(rs.getLong("id"));
+        message.setRetryCount(rs.getInt("retry_count"));
+        message.setLastAttemptTime(toLocalDateTime(rs.getTimestamp("last_attempt_time")));
+        message.setNextAttemptAt(toLocalDateTime(rs.getTimestamp("next_attempt_at")));
+        message.setClaimedBy(rs.getString("claimed_by"));
+        message.setClaimExpiresAt(toLocalDateTime(rs.getTimestamp("claim_expires_at")));
+        message.setStatus(MessageStatus.valueOf(rs.getString("status")));
+        message.setCreatedAt(toLocalDateTime(rs.getTimestamp("created_at")));
+        message.setUpdatedAt(toLocalDateTime(rs.getTimestamp("updated_at")));
+        message.setError(rs.getString("error"));
+        message.setContentType(rs.getString("content_type"));
+        message.setHandlerQualifier(rs.getString("handler_qualifier"));
+        String failureContext = rs.getString("failure_context");
+        message.setFailureContext(failureContext != null ? RetryQualifierResolver.FailureContext.valueOf(failureContext) : null);
+        return message;
+    }
+
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toLocalDateTime() : null;
+    }
+
+    private static String inList(String sql, int size) {
+        return String.format(sql, String.join(", ", Collections.nCopies(size, "?")));
+    }
+
+    private static List<List<Long>> chunks(Collection<Long> ids) {
+        List<Long> all = new ArrayList<>(ids);
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += MAX_IN_LIST) {
+            chunks.add(all.subList(from, Math.min(from + MAX_IN_LIST, all.size())));
+        }
+        return chunks;
+    }
+}
@@ -7,36 +7,48 @@ import org.springframework.data.repository.query.Param;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Optional;
 
 public interface FailedMessageRepository extends JpaRepository<FailedMessage, Long> {
     /**
-     * Finds messages that are due for a retry based on exponential backoff logic.
-     * A message is due if its last_attempt_time is older than the calculated next attempt time.
-     *
-     * Formula for next attempt time: last_attempt_time + (initial_interval * 2^retry_count)
+     * Finds messages that are due for a retry.
+     * The next attempt time is computed when a message is saved or fails, so the predicate
+     * is a range on the (status, next_attempt_at) index rather than a per-row formula.
+     * Rows held by a live claim (for example in a node's timing wheel) are skipped.
+     * This loads full entities including payloads; the scheduler polls through
+     * {@link FailedMessageReader} instead, which leaves the payload column out.
      *
      * NOTE: This native query is written for Oracle DB syntax (12c+).
      *
      * @param currentTime The current time to compare against.
-     * @param initialIntervalMinutes The configured base interval for retries.
      * @param maxRetries The maximum number of retries allowed.
      * @param batchSize The maximum number of rows to fetch.
-     * @return A list of messages ready to be retried.
+     * @return A list of messages ready to be retried, earliest due first.
      */
     @Query(value = """
             SELECT * FROM failed_messages fm
             WHERE fm.status = 'FAILED'
+            AND fm.next_attempt_at <= :currentTime
             AND fm.retry_count < :maxRetries
-            AND (
-              fm.last_attempt_time IS NULL OR
-              fm.last_attempt_time <= (:currentTime - NUMTODSINTERVAL((:initialInterval * POWER(2, fm.retry_count)), 'MINUTE'))
-            )
-            ORDER BY fm.last_attempt_time ASC NULLS FIRST
+            AND (fm.claim_expires_at IS NULL OR fm.claim_expires_at <= :currentTime)
+            ORDER BY fm.next_attempt_at ASC
             FETCH FIRST :batchSize ROWS ONLY
             """, nativeQuery = true)
     List<FailedMessage> findMessagesToRetry(
             @Param("currentTime") LocalDateTime currentTime,
-            @Param("initialInterval") int initialIntervalMinutes,
             @Param("maxRetries") int maxRetries,
             @Param("batchSize") int batchSize);
-}
\ No newline at end of file
+
+    /**
+     * Finds the earliest time after {@code currentTime} at which a FAILED message becomes due.
+     * Rows that are already due are left out: a poller that did not just fetch them is skipping
+     * them on purpose (open circuit breaker, rate limit, a live claim of another node).
+     * Answered from the (status, next_attempt_at) index without touching the table.
+     *
+     * @param currentTime The current time to compare against.
+     * @return The earliest future next attempt time, or empty if there is none.
+     */
+    @Query("SELECT MIN(fm.nextAttemptAt) FROM FailedMessage fm WHERE fm.status = com.eainde.retry.model.MessageStatus.FAILED"
+            + " AND fm.nextAttemptAt > :currentTime")
+    Optional<LocalDateTime> findEarliestNextAttemptAtAfter(@Param("currentTime") LocalDateTime currentTime);
+}
@@ -0,0 +1,128 @@
+package com.eainde.retry.repository;
+
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.model.MessageStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Writes the outcome of a retry batch back to the failed_messages table using JDBC batch
+ * UPDATEs, instead of one {@code repository.save} (and one dirty check and transaction) per row.
+ * Successful messages only need their status flipped; failed ones also carry a new retry
+ * count, attempt times and error, so the two groups are written with separate statements.
+ * Processed rows always release their claim; failed rows keep whatever claim the message
+ * carries, which is empty unless the next attempt is held in a node's timing wheel.
+ *
+ * Every update only applies to a row that is still FAILED, is unclaimed or claimed by the
+ * writing node, and still has the retry count it had when the attempt started. A node whose
+ * lease expired mid-attempt therefore cannot overwrite the outcome written by the node that
+ * re-claimed the row, even once that node released its claim, and neither can a node whose
+ * ShedLock lock lapsed, which never claims rows; its stale outcome is logged and dropped.
+ */
+@Slf4j
+public class FailedMessageStatusWriter {
+
+    private static final String MARK_PROCESSED_SQL = """
+            UPDATE failed_messages
+            SET status = ?, claimed_by = NULL, claim_expires_at = NULL, updated_at = ?
+            WHERE id = ? AND status = 'FAILED' AND retry_count = ? AND (claimed_by = ? OR claimed_by IS NULL)
+            """;
+
+    private static final String RECORD_FAILURE_SQL = """
+            UPDATE failed_messages
+            SET status = ?, retry_count = ?, last_attempt_time = ?, next_attempt_at = ?, error = ?,
+                claimed_by = ?, claim_expires_at = ?, updated_at = ?
+            WHERE id = ? AND status = 'FAILED' AND retry_count = ? AND (claimed_by = ? OR claimed_by IS NULL)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int batchSize;
+
+    public FailedMessageStatusWriter(JdbcTemplate jdbcTemplate, int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Persists the current status of each message in a single transaction.
+     *
+     * @param messages The messages whose retry attempt has completed.
+     * @param nodeId The node that made the attempts; rows claimed by another node are not updated.
+     * Neither are rows whose retry count is no longer the {@link FailedMessage#getAttemptRetryCount()}
+     * of their message.
+     */
+    @Transactional
+    public void writeOutcomes(Collection<FailedMessage> messages, String nodeId) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<FailedMessage> processed = new ArrayList<>();
+        List<FailedMessage> failed = new ArrayList<>();
+        for (FailedMessage message : messages) {
+            (message.getStatus() == MessageStatus.PROCESSED ? processed : failed).add(message);
+        }
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        if (!processed.isEmpty()) {
+            logStaleOutcomes(processed, jdbcTemplate.batchUpdate(MARK_PROCESSED_SQL, processed, batchSize, (ps, message) -> {
+                ps.setString(1, MessageStatus.PROCESSED.name());
+                ps.setTimestamp(2, now);
+                ps.setLong(3, message.getId());
+                ps.setInt(4, attemptRetryCount(message));
+                ps.setString(5, nodeId);
+            }));
+        }
+        if (!failed.isEmpty()) {
+            logStaleOutcomes(failed, jdbcTemplate.batchUpdate(RECORD_FAILURE_SQL, failed, batchSize, (ps, message) -> {
+                ps.setString(1, message.getStatus().name());
+                ps.setInt(2, message.getRetryCount());
+                ps.setTimestamp(3, toTimestamp(message.getLastAttemptTime()));
+                ps.setTimestamp(4, toTimestamp(message.getNextAttemptAt()));
+                ps.setString(5, message.getError());
+                ps.setString(6, message.getClaimedBy());
+                ps.setTimestamp(7, toTimestamp(message.getClaimExpiresAt()));
+                ps.setTimestamp(8, now);
+                ps.setLong(9, message.getId());
+                ps.setInt(10, attemptRetryCount(message));
+                ps.setString(11, nodeId);
+            }));
+        }
+    }
+
+    /**
+     * Logs the messages whose row was not updated because it had already moved on. Drivers that
+     * report {@link java.sql.Statement#SUCCESS_NO_INFO} for batched statements log nothing.
+     */
+    private static void logStaleOutcomes(List<FailedMessage> messages, int[][] updateCounts) {
+        int index = 0;
+        for (int[] batch : updateCounts) {
+            for (int updateCount : batch) {
+                if (updateCount == 0) {
+                    FailedMessage message = messages.get(index);
+                    log.warn("Discarded the outcome of message ID: {} ({}). Its row is no longer FAILED, was retried meanwhile or is claimed by another node.",
+                            message.getId(), message.getStatus());
+                }
+                index++;
+            }
+        }
+    }
+
+    /**
+     * A message that was not attempted, such as one released by an open circuit breaker, expects
+     * the retry count it carries.
+     */
+    private static int attemptRetryCount(FailedMessage message) {
+        return message.getAttemptRetryCount() != null ? message.getAttemptRetryCount() : message.getRetryCount();
+    }
+
+    private static Timestamp toTimestamp(LocalDateTime time) {
+        return time != null ? Timestamp.valueOf(time) : null;
+    }
+}
@@ -0,0 +1,63 @@
+package com.eainde.retry.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Restricts a poll to the rows of one handler, or to the rows that no known handler owns
+ * (no qualifier, or the qualifier of a handler bean that no longer exists). The SQL predicate
+ * is built once, when the filter is created.
+ */
+public final class QualifierFilter {
+
+    private final String predicate;
+    private final List<String> parameters;
+
+    private QualifierFilter(String predicate, List<String> parameters) {
+        this.predicate = predicate;
+        this.parameters = parameters;
+    }
+
+    /**
+     * @param handlerQualifier The name of the handler bean.
+     * @return A filter matching the rows of that handler.
+     */
+    public static QualifierFilter forHandler(String handlerQualifier) {
+        return new QualifierFilter("fm.handler_qualifier = ?", List.of(handlerQualifier));
+    }
+
+    /**
+     * @param knownQualifiers The names of all handler beans that have their own filter.
+     * @return A filter matching the rows that none of them owns.
+     */
+    public static QualifierFilter unassigned(List<String> knownQualifiers) {
+        if (knownQualifiers.isEmpty()) {
+            return new QualifierFilter("1 = 1", List.of());
+        }
+        String placeholders = String.join(", ", Collections.nCopies(knownQualifiers.size(), "?"));
+        return new QualifierFilter("(fm.handler_qualifier IS NULL OR fm.handler_qualifier NOT IN (" + placeholders + "))",
+                List.copyOf(knownQualifiers));
+    }
+
+    /**
+     * @return The predicate, for the {@code failed_messages fm} alias.
+     */
+    String predicate() {
+        return predicate;
+    }
+
+    /**
+     * Binds the predicate's parameters.
+     *
+     * @return The index of the next parameter.
+     */
+    int bind(PreparedStatement ps, int firstIndex) throws SQLException {
+        int index = firstIndex;
+        for (String parameter : parameters) {
+            ps.setString(index++, parameter);
+        }
+        return index;
+    }
+}
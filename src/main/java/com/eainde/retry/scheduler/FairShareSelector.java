@@ -0,0 +1,120 @@
+package com.eainde.retry.scheduler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Splits the row budget of one poll across handler lanes with deficit round-robin.
+ *
+ * Every poll, each lane earns credit in proportion to its weight ({@code budget * weight / total
+ * weight}) and may fetch as many rows as it has whole credit, up to its own batch size. Credit
+ * that a backlogged lane cannot spend this poll carries over, so a lane with a small weight still
+ * gets a row at least every {@code total weight / (budget * weight)} polls however large the other
+ * backlogs are. A lane that comes back short is drained and loses its credit, and the budget it
+ * left unused is shared among the lanes that are still backlogged, so no capacity is wasted.
+ *
+ * The lane that is asked first rotates from poll to poll, and the selected rows are interleaved
+ * across lanes.
+ *
+ * @param <L> The lane type.
+ */
+final class FairShareSelector<L> {
+
+    /**
+     * How often leftover budget is redistributed within one poll, which bounds the number of queries.
+     */
+    private static final int MAX_PASSES = 3;
+
+    private final Map<String, Double> deficits = new HashMap<>();
+    private int rotation;
+
+    /**
+     * A lane as seen by the selector.
+     *
+     * @param name The unique lane name.
+     * @param weight The lane's relative share of the budget.
+     * @param maxRows The most rows the lane may fetch in one poll.
+     * @param lane The caller's lane object, passed back to the fetch function.
+     */
+    record Lane<L>(String name, int weight, int maxRows, L lane) {
+    }
+
+    /**
+     * Selects up to {@code budget} rows across the lanes.
+     *
+     * @param lanes The lanes to poll.
+     * @param budget The total number of rows to select.
+     * @param fetch Fetches up to the given number of due rows of a lane.
+     * @param <T> The row type.
+     * @return The selected rows, interleaved across lanes.
+     */
+    synchronized <T> List<T> select(List<Lane<L>> lanes, int budget, BiFunction<L, Integer, List<T>> fetch) {
+        if (lanes.isEmpty() || budget <= 0) {
+            return List.of();
+        }
+        int start = Math.floorMod(rotation++, lanes.size());
+        List<Lane<L>> order = new ArrayList<>(lanes.size());
+        for (int i = 0; i < lanes.size(); i++) {
+            order.add(lanes.get((start + i) % lanes.size()));
+        }
+
+        Map<String, List<T>> selected = new HashMap<>();
+        Map<String, Integer> taken = new HashMap<>();
+        List<Lane<L>> backlogged = order;
+        int remaining = budget;
+        for (int pass = 0; pass < MAX_PASSES && remaining > 0 && !backlogged.isEmpty(); pass++) {
+            int passBudget = remaining;
+            long totalWeight = backlogged.stream().mapToLong(lane -> Math.max(1, lane.weight())).sum();
+            List<Lane<L>> stillBacklogged = new ArrayList<>();
+            for (Lane<L> lane : backlogged) {
+                int alreadyTaken = taken.getOrDefault(lane.name(), 0);
+                int capacity = lane.maxRows() - alreadyTaken;
+                double credit = deficits.getOrDefault(lane.name(), 0.0)
+                        + (double) passBudget * Math.max(1, lane.weight()) / totalWeight;
+                // Do not let an idle or capped lane bank more than one batch worth of credit.
+                credit = Math.min(credit, Math.max(1, lane.maxRows()));
+                int allowance = (int) Math.min(Math.min((long) Math.floor(credit), capacity), remaining);
+                if (allowance <= 0) {
+                    deficits.put(lane.name(), credit);
+                    continue;
+                }
+                List<T> rows = fetch.apply(lane.lane(), allowance);
+                selected.computeIfAbsent(lane.name(), key -> new ArrayList<>()).addAll(rows);
+                taken.put(lane.name(), alreadyTaken + rows.size());
+                remaining -= rows.size();
+                if (rows.size() < allowance) {
+                    // Drained: in deficit round-robin an empty queue forfeits its credit.
+                    deficits.put(lane.name(), 0.0);
+                } else {
+                    deficits.put(lane.name(), credit - rows.size());
+                    if (alreadyTaken + rows.size() < lane.maxRows()) {
+                        stillBacklogged.add(lane);
+                    }
+                }
+            }
+            backlogged = stillBacklogged;
+        }
+        deficits.keySet().retainAll(lanes.stream().map(Lane::name).toList());
+        return interleave(order, selected);
+    }
+
+    private <T> List<T> interleave(List<Lane<L>> order, Map<String, List<T>> selected) {
+        List<T> merged = new ArrayList<>();
+        for (int index = 0; ; index++) {
+            boolean any = false;
+            for (Lane<L> lane : order) {
+                List<T> rows = selected.get(lane.name());
+                if (rows != null && index < rows.size()) {
+                    merged.add(rows.get(index));
+                    any = true;
+                }
+            }
+            if (!any) {
+                return merged;
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The circuit breaker of one handler, fed with the outcome of every attempt of its messages.
+ *
+ * CLOSED: attempts run normally and their outcomes are kept in a sliding window of the last
+ * {@code sliding-window-size} attempts. Once at least {@code minimum-number-of-calls} outcomes are
+ * recorded and the failure rate reaches {@code failure-rate-threshold}, the breaker opens.
+ *
+ * OPEN: no attempt runs. The scheduler does not poll the handler's rows, and rows it already
+ * holds are released untouched, so an outage costs neither handler threads nor retry counts.
+ *
+ * HALF_OPEN: after {@code wait-duration-in-open-state} exactly one probe message is let through.
+ * If it succeeds the breaker closes with an empty window; if it fails the breaker opens again.
+ */
+@Slf4j
+final class HandlerCircuitBreaker {
+
+    /**
+     * The state of a breaker.
+     */
+    enum State {
+        /** Attempts run and are recorded. */
+        CLOSED,
+        /** Attempts are refused until the wait duration has passed. */
+        OPEN,
+        /** A single probe attempt is allowed. */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final LongSupplier nanoClock;
+    private final int failureRateThreshold;
+    private final int minimumNumberOfCalls;
+    private final long waitNanos;
+    // Ring buffer of the most recent outcomes; true means failed.
+    private final boolean[] window;
+    private int recorded;
+    private int next;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    HandlerCircuitBreaker(String name, KafkaRetryProperties.CircuitBreaker settings) {
+        this(name, settings, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock The source of {@link System#nanoTime()} readings; tests pass a fake one.
+     */
+    HandlerCircuitBreaker(String name, KafkaRetryProperties.CircuitBreaker settings, LongSupplier nanoClock) {
+        this.name = name;
+        this.nanoClock = nanoClock;
+        this.failureRateThreshold = settings.getFailureRateThreshold();
+        this.window = new boolean[Math.max(1, settings.getSlidingWindowSize())];
+        this.minimumNumberOfCalls = Math.min(Math.max(1, settings.getMinimumNumberOfCalls()), window.length);
+        this.waitNanos = settings.getWaitDurationInOpenState().toNanos();
+    }
+
+    /**
+     * @param requested The number of rows the scheduler would like to poll.
+     * @return How many rows may be polled: all while closed, one probe while half-open, none while open.
+     */
+    synchronized int permittedRows(int requested) {
+        switch (currentState()) {
+            case CLOSED:
+                return requested;
+            case HALF_OPEN:
+                return probeInFlight ? 0 : Math.min(1, requested);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Asks to run one attempt. Every granted attempt must be followed by {@link #onSuccess()} or
+     * {@link #onFailure()}.
+     *
+     * @return true if the attempt may run.
+     */
+    synchronized boolean tryAcquire() {
+        switch (currentState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            log.info("Probe for handler '{}' succeeded. Closing its circuit breaker.", name);
+            close();
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            log.warn("Probe for handler '{}' failed. Keeping its circuit breaker open.", name);
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minimumNumberOfCalls && failures * 100L >= (long) failureRateThreshold * recorded) {
+                log.warn("{} of the last {} attempts of handler '{}' failed. Opening its circuit breaker.",
+                        failures, recorded, name);
+                open();
+            }
+        }
+        // Outcomes of attempts that started before the breaker opened are ignored.
+    }
+
+    synchronized State getState() {
+        return currentState();
+    }
+
+    private State currentState() {
+        if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= waitNanos) {
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        return state;
+    }
+
+    private void record(boolean failed) {
+        if (recorded == window.length) {
+            failures -= window[next] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        window[next] = failed;
+        failures += failed ? 1 : 0;
+        next = (next + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = nanoClock.getAsLong();
+        probeInFlight = false;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        probeInFlight = false;
+        recorded = 0;
+        next = 0;
+        failures = 0;
+    }
+}
@@ -0,0 +1,75 @@
+package com.eainde.retry.scheduler;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The token bucket of one handler. It refills at {@code permitsPerSecond} up to {@code burst}
+ * tokens, and every retry attempt of the handler takes one token.
+ *
+ * Attempts never fail for lack of a token: {@link #reserve()} hands out the next token even if it
+ * is yet to be earned, and returns how long the caller has to wait for it. Reservations queue up
+ * behind each other, so concurrent callers are spread evenly at the configured rate.
+ */
+public final class HandlerRateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final LongSupplier nanoClock;
+    private final double permitsPerNano;
+    private final double burst;
+    // May go negative while reservations for tokens not yet earned are outstanding.
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond The sustained rate; must be positive.
+     * @param burst The number of tokens the bucket holds; the bucket starts full.
+     */
+    public HandlerRateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock The source of {@link System#nanoTime()} readings; tests pass a fake one.
+     */
+    HandlerRateLimiter(double permitsPerSecond, int burst, LongSupplier nanoClock) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive: " + permitsPerSecond);
+        }
+        this.nanoClock = nanoClock;
+        this.permitsPerNano = permitsPerSecond / NANOS_PER_SECOND;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = nanoClock.getAsLong();
+    }
+
+    /**
+     * Counts how many attempts could start within the lookahead, without taking any tokens.
+     *
+     * @param requested The number of attempts wanted.
+     * @param lookaheadNanos How long the caller is prepared to pace the attempts.
+     * @return The number of attempts, at most {@code requested}.
+     */
+    public synchronized int available(int requested, long lookaheadNanos) {
+        refill();
+        double within = tokens + permitsPerNano * Math.max(0, lookaheadNanos);
+        return (int) Math.max(0, Math.min(requested, Math.floor(within)));
+    }
+
+    /**
+     * Takes one token.
+     *
+     * @return The nanoseconds to wait before the attempt may start, 0 if it may start now.
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / permitsPerNano);
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * permitsPerNano);
+        refilledAt = now;
+    }
+}
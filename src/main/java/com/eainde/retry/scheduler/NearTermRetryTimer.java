@@ -0,0 +1,198 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.repository.FailedMessageClaimer;
+import com.eainde.retry.repository.FailedMessageReader;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds messages whose next attempt falls within a short horizon in an in-memory
+ * {@link TimingWheel} and fires them at their due time, instead of waiting for the next poll.
+ *
+ * The database stays the source of truth: a held message is still persisted, but is claimed for
+ * this node until its next attempt time plus the claim lease, so pollers skip it. If the node dies
+ * the lease lapses and the row is picked up by the regular poll. On startup the wheel is rebuilt
+ * by claiming the rows that become due within the horizon.
+ *
+ * Wheel-fired retries run on this node outside any ShedLock lock, so the wheel requires
+ * {@code kafka.retry.coordination.mode=CLAIM}, where the claims alone keep nodes apart.
+ */
+@Slf4j
+public class NearTermRetryTimer implements SmartLifecycle {
+
+    private final KafkaRetryProperties properties;
+    private final KafkaRetryProperties.TimingWheel settings;
+    private final FailedMessageClaimer claimer;
+    private final FailedMessageReader failedMessageReader;
+    private final TimingWheel<FailedMessage> wheel;
+    // Messages that were already due when scheduled; fired together on the next tick. Guarded by wheel.
+    private List<FailedMessage> overdue = new ArrayList<>();
+
+    private volatile Consumer<List<FailedMessage>> expiryHandler;
+    private volatile boolean running;
+    private ScheduledExecutorService ticker;
+    private ExecutorService handoff;
+
+    /**
+     * @param properties The configured retry properties.
+     * @param claimer The claimer used to hold rows for this node and to rebuild the wheel.
+     * @param failedMessageReader The reader used to load the rows when rebuilding the wheel.
+     * @throws IllegalStateException if the coordination mode is not CLAIM.
+     */
+    public NearTermRetryTimer(KafkaRetryProperties properties, FailedMessageClaimer claimer,
+                              FailedMessageReader failedMessageReader) {
+        if (properties.getCoordination().getMode() != KafkaRetryProperties.CoordinationMode.CLAIM) {
+            throw new IllegalStateException("kafka.retry.timing-wheel.enabled=true requires "
+                    + "kafka.retry.coordination.mode=CLAIM: wheel-fired retries do not run under the ShedLock lock.");
+        }
+        this.properties = properties;
+        this.settings = properties.getTimingWheel();
+        this.claimer = claimer;
+        this.failedMessageReader = failedMessageReader;
+        this.wheel = new TimingWheel<>(settings.getTick().toMillis(), settings.getWheelSize(), System.currentTimeMillis());
+    }
+
+    /**
+     * Registers the callback that retries messages once they are due. Called by {@link RetryScheduler}.
+     */
+    void setExpiryHandler(Consumer<List<FailedMessage>> expiryHandler) {
+        this.expiryHandler = expiryHandler;
+    }
+
+    /**
+     * Reserves a message for the wheel if its next attempt falls within the horizon and the wheel
+     * has room. The claim is set on the entity only; the caller persists it and then calls
+     * {@link #schedule(FailedMessage)}.
+     *
+     * @param message A FAILED message with its next attempt time set.
+     * @return true if the message was reserved and must be scheduled after it is persisted.
+     */
+    public boolean reserve(FailedMessage message) {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime nextAttemptAt = message.getNextAttemptAt();
+        if (!running || nextAttemptAt == null || nextAttemptAt.isAfter(now.plus(settings.getHorizon()))) {
+            return false;
+        }
+        synchronized (wheel) {
+            if (wheel.size() + overdue.size() >= settings.getMaxEntries()) {
+                return false;
+            }
+        }
+        LocalDateTime leaseStart = nextAttemptAt.isAfter(now) ? nextAttemptAt : now;
+        message.setClaimedBy(claimer.getNodeId());
+        message.setClaimExpiresAt(leaseStart.plus(claimer.getLeaseDuration()));
+        return true;
+    }
+
+    /**
+     * Adds a persisted, reserved message to the wheel.
+     *
+     * @param message The message to fire at its next attempt time.
+     */
+    public void schedule(FailedMessage message) {
+        long dueMillis = message.getNextAttemptAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        synchronized (wheel) {
+            if (!wheel.add(dueMillis, message)) {
+                overdue.add(message);
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        if (expiryHandler == null) {
+            log.warn("No RetryScheduler registered with the timing wheel. Near-term retries fall back to polling.");
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(daemon("kafka-retry-wheel"));
+        handoff = Executors.newSingleThreadExecutor(daemon("kafka-retry-wheel-dispatch"));
+        running = true;
+        rebuild();
+        long tickMillis = settings.getTick().toMillis();
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        log.info("Started near-term retry timing wheel with a horizon of {}.", settings.getHorizon());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (ticker != null) {
+            ticker.shutdownNow();
+            handoff.shutdown();
+        }
+        // Held rows keep their claim until it lapses and are then picked up by the poll.
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Claims the rows that become due within the horizon, including those held by a previous
+     * incarnation of this node whose claims have lapsed.
+     */
+    private void rebuild() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<Long> ids = claimer.claimMessagesDueBy(now, now.plus(settings.getHorizon()),
+                    properties.getMaxRetries(), settings.getMaxEntries());
+            if (ids.isEmpty()) {
+                return;
+            }
+            // Payloads are fetched when the messages fire, not held in memory while they wait.
+            failedMessageReader.findByIds(ids).forEach(this::schedule);
+            log.info("Rebuilt timing wheel with {} near-term retries.", ids.size());
+        } catch (Exception e) {
+            log.error("Failed to rebuild the timing wheel. Near-term retries fall back to polling.", e);
+        }
+    }
+
+    private void tick() {
+        List<FailedMessage> due;
+        synchronized (wheel) {
+            due = wheel.advance(System.currentTimeMillis());
+            if (!overdue.isEmpty()) {
+                due.addAll(overdue);
+                overdue = new ArrayList<>();
+            }
+        }
+        if (!due.isEmpty()) {
+            fire(due);
+        }
+    }
+
+    private void fire(List<FailedMessage> due) {
+        if (!running) {
+            return;
+        }
+        handoff.execute(() -> {
+            try {
+                expiryHandler.accept(due);
+            } catch (Exception e) {
+                log.error("Failed to retry {} messages from the timing wheel.", due.size(), e);
+            }
+        });
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,404 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Fans a retry batch out to a bounded worker pool.
+ * Items are grouped into lanes (one per handler) and each lane is drained by at most
+ * {@code maxInFlightPerHandler} runners, so a slow handler cannot occupy the whole pool.
+ * Lanes live as long as the dispatcher: batches dispatched at the same time, such as a poll and a
+ * timing wheel handoff, queue into the same lanes and share their caps.
+ * In virtual thread mode every item runs on its own virtual thread instead. Each lane's semaphore
+ * caps its handler, and a global semaphore caps how many threads execute handler code at once.
+ * A lane can also be paced by a {@link HandlerRateLimiter}. A platform runner waiting for a
+ * permit gives its worker back to the pool and resumes from a timer, so a throttled handler never
+ * holds threads that other lanes could use.
+ * {@link #dispatch} blocks until the batch is done. Once the configured batch timeout expires,
+ * items not yet started are abandoned, but attempts already running are still waited for, up to
+ * the claim lease, so the caller's lock or claim outlives every attempt it started.
+ */
+@Slf4j
+public class RetryDispatcher implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final KafkaRetryProperties.Dispatch settings;
+    private final Duration leaseDuration;
+    private final boolean virtualThreads;
+    private final Semaphore virtualThreadPermits;
+    private final ScheduledExecutorService pacer;
+    // Shared by every dispatch call, keyed by lane name.
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    public RetryDispatcher(KafkaRetryProperties properties) {
+        this.settings = properties.getDispatch();
+        this.leaseDuration = properties.getCoordination().getLeaseDuration();
+        this.virtualThreads = settings.getThreadMode() == KafkaRetryProperties.ThreadMode.VIRTUAL;
+        this.virtualThreadPermits = new Semaphore(Math.max(1, settings.getVirtualThreadConcurrency()));
+        this.executor = createExecutor(settings);
+        this.pacer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-retry-pacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the work for every item and waits for the whole batch to complete.
+     * If the batch timeout expires, items not yet started are abandoned and stay
+     * untouched in the database, so the next run picks them up again. Items already
+     * started are waited for, so no message runs twice at the same time.
+     *
+     * @param items The items to process.
+     * @param laneKey Maps an item to the handler lane that caps its concurrency.
+     * @param work The processing logic. It must handle its own exceptions.
+     */
+    public <T> void dispatch(List<T> items, Function<T, String> laneKey, Consumer<T> work) {
+        dispatch(items, laneKey, lane -> settings.getMaxInFlightPerHandler(), work);
+    }
+
+    /**
+     * Like {@link #dispatch(List, Function, Consumer)}, with a concurrency cap per lane.
+     *
+     * @param items The items to process.
+     * @param laneKey Maps an item to the handler lane that caps its concurrency.
+     * @param laneConcurrency The maximum number of items of a lane processed at once, across all
+     *                        batches; read when the lane is first used.
+     * @param work The processing logic. It must handle its own exceptions.
+     */
+    public <T> void dispatch(List<T> items, Function<T, String> laneKey, ToIntFunction<String> laneConcurrency,
+                             Consumer<T> work) {
+        dispatch(items, laneKey, laneConcurrency, lane -> null, work);
+    }
+
+    /**
+     * Like {@link #dispatch(List, Function, ToIntFunction, Consumer)}, with a rate limit per lane.
+     *
+     * @param items The items to process.
+     * @param laneKey Maps an item to the handler lane that caps its concurrency.
+     * @param laneConcurrency The maximum number of items of a lane processed at once, across all
+     *                        batches; read when the lane is first used.
+     * @param laneRateLimiter The token bucket that paces a lane, or null for an unlimited lane;
+     *                        read when the lane is first used.
+     * @param work The processing logic. It must handle its own exceptions.
+     */
+    public <T> void dispatch(List<T> items, Function<T, String> laneKey, ToIntFunction<String> laneConcurrency,
+                             Function<String, HandlerRateLimiter> laneRateLimiter, Consumer<T> work) {
+        long startedAt = System.nanoTime();
+        Batch batch = new Batch(items.size());
+        Set<Lane> used = new LinkedHashSet<>();
+        for (T item : items) {
+            Lane lane = lanes.computeIfAbsent(laneKey.apply(item),
+                    name -> new Lane(Math.max(1, laneConcurrency.applyAsInt(name)), laneRateLimiter.apply(name)));
+            Entry<T> entry = new Entry<>(item, work, batch);
+            if (virtualThreads) {
+                startThread(entry, lane);
+            } else {
+                lane.pending.add(entry);
+                used.add(lane);
+            }
+        }
+        used.forEach(this::startRunners);
+
+        try {
+            batch.done.get(settings.getBatchTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            batch.abandoned.set(true);
+            discardPending(used, batch);
+            log.warn("Retry batch did not complete within {}. Messages not started yet are left for the next run; "
+                    + "waiting for the attempts in flight.", settings.getBatchTimeout());
+            awaitInFlight(batch, startedAt);
+        } catch (InterruptedException e) {
+            batch.abandoned.set(true);
+            discardPending(used, batch);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Unexpected error while dispatching retry batch.", e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the attempts of an abandoned batch that had already started, but not beyond the
+     * claim lease: by then other nodes may take the rows over anyway, and a hung handler must not
+     * hold the calling thread forever. Items that have not started see the abandoned flag and
+     * finish without an attempt.
+     */
+    private void awaitInFlight(Batch batch, long startedAt) {
+        long remainingNanos = leaseDuration.toNanos() - (System.nanoTime() - startedAt);
+        try {
+            batch.done.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            log.error("Attempts of a retry batch are still running after the claim lease of {}. Returning without "
+                    + "them; their messages may be retried while they still run.", leaseDuration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Unexpected error while dispatching retry batch.", e.getCause());
+        }
+    }
+
+    /**
+     * Removes the queued items of an abandoned batch, so it completes without waiting for its
+     * lanes to reach them.
+     */
+    private static void discardPending(Set<Lane> used, Batch batch) {
+        for (Lane lane : used) {
+            for (Entry<?> entry : lane.pending) {
+                // remove() succeeds for exactly one thread, so a runner polling it concurrently never runs it.
+                if (entry.batch == batch && lane.pending.remove(entry)) {
+                    entry.skip();
+                }
+            }
+        }
+    }
+
+    /**
+     * Platform mode: starts runners for a lane until it has one per queued item or reaches its cap.
+     */
+    private void startRunners(Lane lane) {
+        int running;
+        while (!lane.pending.isEmpty() && (running = lane.runners.get()) < lane.maxInFlight) {
+            if (lane.runners.compareAndSet(running, running + 1)) {
+                resume(() -> drain(lane, null), lane, null);
+            }
+        }
+    }
+
+    /**
+     * Virtual thread mode: one thread per item. Blocking on the semaphores is cheap here,
+     * so both the per-handler cap and the global ceiling are plain permits.
+     */
+    private void startThread(Entry<?> entry, Lane lane) {
+        try {
+            executor.execute(() -> runWithPermits(entry, lane));
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the item stays untouched for the next run.
+            entry.skip();
+        }
+    }
+
+    private void runWithPermits(Entry<?> entry, Lane lane) {
+        try {
+            if (entry.abandoned()) {
+                // Not started before the batch timeout; must not take a token from the next batch.
+                entry.skip();
+                return;
+            }
+            // Sleeping is cheap on a virtual thread, so the rate limit is a plain wait here.
+            long waitNanos = lane.rateLimiter != null ? lane.rateLimiter.reserve() : 0;
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            // The lane permit comes first: threads queued behind a busy handler must not hold
+            // global permits that the other handlers need.
+            lane.permits.acquire();
+            try {
+                virtualThreadPermits.acquire();
+                try {
+                    entry.run();
+                } finally {
+                    virtualThreadPermits.release();
+                }
+            } finally {
+                lane.permits.release();
+            }
+        } catch (InterruptedException e) {
+            entry.skip();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Processes the items of a lane, of any batch, until it is empty. When the lane's rate limiter
+     * makes an item wait, the runner hands its worker back and continues with that item once the
+     * permit is due.
+     *
+     * @param next An item whose permit is already reserved, or null.
+     */
+    private void drain(Lane lane, Entry<?> next) {
+        if (next != null) {
+            next.run();
+        }
+        Entry<?> entry;
+        while ((entry = lane.pending.poll()) != null) {
+            if (entry.abandoned()) {
+                entry.skip();
+                continue;
+            }
+            long waitNanos = lane.rateLimiter != null ? lane.rateLimiter.reserve() : 0;
+            if (waitNanos > 0) {
+                Entry<?> paced = entry;
+                resumeLater(() -> drain(lane, paced), lane, paced, waitNanos);
+                return;
+            }
+            entry.run();
+        }
+        lane.runners.decrementAndGet();
+        // An item queued between the last poll and the decrement found the lane at its cap.
+        startRunners(lane);
+    }
+
+    private void resumeLater(Runnable task, Lane lane, Entry<?> held, long delayNanos) {
+        try {
+            pacer.schedule(() -> resume(task, lane, held), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            stopRunner(lane, held);
+        }
+    }
+
+    private void resume(Runnable task, Lane lane, Entry<?> held) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            stopRunner(lane, held);
+        }
+    }
+
+    /**
+     * Shutting down: the runner ends and the remaining items stay untouched for the next run.
+     */
+    private static void stopRunner(Lane lane, Entry<?> held) {
+        if (held != null) {
+            held.skip();
+        }
+        lane.runners.decrementAndGet();
+        Entry<?> entry;
+        while ((entry = lane.pending.poll()) != null) {
+            entry.skip();
+        }
+    }
+
+    @Override
+    public void close() {
+        pacer.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(settings.getBatchTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService createExecutor(KafkaRetryProperties.Dispatch settings) {
+        if (settings.getThreadMode() == KafkaRetryProperties.ThreadMode.VIRTUAL) {
+            return VirtualThreads.newThreadPerTaskExecutor("kafka-retry-vt-");
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "kafka-retry-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(Math.max(1, settings.getPoolSize()), threadFactory);
+    }
+
+    /**
+     * The items of one handler waiting to run, from every batch in progress, and the limits that
+     * apply to all of them together.
+     */
+    private static final class Lane {
+
+        private final Queue<Entry<?>> pending = new ConcurrentLinkedQueue<>();
+        // Platform mode: the runners currently draining the lane.
+        private final AtomicInteger runners = new AtomicInteger();
+        // Virtual thread mode: the attempts currently running.
+        private final Semaphore permits;
+        private final int maxInFlight;
+        private final HandlerRateLimiter rateLimiter;
+
+        private Lane(int maxInFlight, HandlerRateLimiter rateLimiter) {
+            this.maxInFlight = maxInFlight;
+            this.permits = new Semaphore(maxInFlight);
+            this.rateLimiter = rateLimiter;
+        }
+    }
+
+    /**
+     * The progress of one dispatch call.
+     */
+    private static final class Batch {
+
+        private final AtomicInteger remaining;
+        private final AtomicBoolean abandoned = new AtomicBoolean(false);
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Batch(int size) {
+            this.remaining = new AtomicInteger(size);
+            if (size == 0) {
+                done.complete(null);
+            }
+        }
+
+        private void finish() {
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * One item of a batch. Every entry is either run or skipped exactly once.
+     */
+    private static final class Entry<T> {
+
+        private final T item;
+        private final Consumer<T> work;
+        private final Batch batch;
+
+        private Entry(T item, Consumer<T> work, Batch batch) {
+            this.item = item;
+            this.work = work;
+            this.batch = batch;
+        }
+
+        private boolean abandoned() {
+            return batch.abandoned.get();
+        }
+
+        /**
+         * Runs the work, unless the batch was abandoned in the meantime.
+         */
+        private void run() {
+            try {
+                if (!abandoned()) {
+                    work.accept(item);
+                }
+            } catch (RuntimeException e) {
+                log.error("Unexpected error while retrying a message.", e);
+            } finally {
+                batch.finish();
+            }
+        }
+
+        private void skip() {
+            batch.finish();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.repository.FailedMessageStatusWriter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects the outcomes of one retry batch so they can be written with a few JDBC batch
+ * statements once the batch is done. Workers that finish after {@link #flush()} (for example
+ * because the batch timed out) have their outcome written straight away instead of being lost.
+ */
+@Slf4j
+class RetryOutcomeBuffer {
+
+    private final FailedMessageStatusWriter statusWriter;
+    private final String nodeId;
+    private final Queue<FailedMessage> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean flushed;
+
+    /**
+     * @param statusWriter The writer that persists the outcomes.
+     * @param nodeId The node making the attempts; only rows it may still own are updated.
+     */
+    RetryOutcomeBuffer(FailedMessageStatusWriter statusWriter, String nodeId) {
+        this.statusWriter = statusWriter;
+        this.nodeId = nodeId;
+    }
+
+    void record(FailedMessage message) {
+        pending.add(message);
+        if (flushed) {
+            drain();
+        }
+    }
+
+    void flush() {
+        flushed = true;
+        drain();
+    }
+
+    private void drain() {
+        List<FailedMessage> outcomes = new ArrayList<>();
+        FailedMessage message;
+        while ((message = pending.poll()) != null) {
+            outcomes.add(message);
+        }
+        if (outcomes.isEmpty()) {
+            return;
+        }
+        try {
+            statusWriter.writeOutcomes(outcomes, nodeId);
+        } catch (Exception e) {
+            // The rows keep their previous state and will be retried again.
+            log.error("Failed to write the outcome of {} retried messages.", outcomes.size(), e);
+        }
+    }
+}
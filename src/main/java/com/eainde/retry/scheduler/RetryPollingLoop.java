@@ -0,0 +1,135 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.repository.FailedMessageRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+/**
+ * Drives the {@link RetryScheduler} continuously instead of once per cron tick.
+ * While polls keep returning full batches the loop goes again immediately, so a backlog drains
+ * at full speed. Once a poll finds nothing to do the pause between polls grows exponentially up
+ * to {@code max-idle-interval}, but the loop wakes early when the next pending retry becomes due.
+ * Rows that were already due and still not fetched are ones this node skips on purpose, so they
+ * do not shorten the pause.
+ */
+@Slf4j
+public class RetryPollingLoop implements SmartLifecycle {
+
+    private final RetryScheduler retryScheduler;
+    private final FailedMessageRepository failedMessageRepository;
+    private final KafkaRetryProperties properties;
+    private final Object monitor = new Object();
+
+    private volatile boolean running;
+    private Thread pollerThread;
+
+    public RetryPollingLoop(RetryScheduler retryScheduler, FailedMessageRepository failedMessageRepository,
+                            KafkaRetryProperties properties) {
+        this.retryScheduler = retryScheduler;
+        this.failedMessageRepository = failedMessageRepository;
+        this.properties = properties;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        pollerThread = new Thread(this::run, "kafka-retry-poller");
+        pollerThread.setDaemon(true);
+        pollerThread.start();
+        log.info("Started continuous retry polling.");
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        wakeUp();
+        try {
+            pollerThread.join(properties.getDispatch().getBatchTimeout().toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stopped continuous retry polling.");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Ends the current pause early. Used by {@link #stop()} so shutdown does not wait out a pause.
+     */
+    public void wakeUp() {
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    private void run() {
+        KafkaRetryProperties.Polling polling = properties.getPolling();
+        Duration idleInterval = polling.getMinIdleInterval();
+        while (running) {
+            int fetched;
+            try {
+                fetched = retryScheduler.pollOnce();
+            } catch (Exception e) {
+                log.error("Retry poll failed.", e);
+                fetched = 0;
+            }
+            if (fetched >= properties.getBatchSize()) {
+                // More work is very likely waiting, so poll again straight away.
+                idleInterval = polling.getMinIdleInterval();
+                continue;
+            }
+            idleInterval = fetched > 0 ? polling.getMinIdleInterval() : nextIdleInterval(idleInterval, polling);
+            pause(untilNextPoll(idleInterval, polling));
+        }
+    }
+
+    private Duration nextIdleInterval(Duration current, KafkaRetryProperties.Polling polling) {
+        long next = (long) (current.toMillis() * polling.getBackoffMultiplier());
+        return Duration.ofMillis(Math.min(next, polling.getMaxIdleInterval().toMillis()));
+    }
+
+    /**
+     * Shortens the idle pause if a pending retry becomes due sooner. Only rows that are not due
+     * yet count: the idle interval already reflects whether the last poll found any work, and
+     * due rows it did not fetch (open breaker, rate-limited lane, another node's claim) would
+     * otherwise pin the pause to {@code min-idle-interval}. Never pauses less than that.
+     */
+    private Duration untilNextPoll(Duration idleInterval, KafkaRetryProperties.Polling polling) {
+        LocalDateTime now = LocalDateTime.now();
+        Optional<LocalDateTime> earliest;
+        try {
+            earliest = failedMessageRepository.findEarliestNextAttemptAtAfter(now);
+        } catch (Exception e) {
+            log.warn("Could not look up the earliest next attempt time. Error: {}", e.getMessage());
+            return idleInterval;
+        }
+        if (earliest.isEmpty()) {
+            return idleInterval;
+        }
+        Duration untilDue = Duration.between(now, earliest.get());
+        Duration pause = untilDue.compareTo(idleInterval) < 0 ? untilDue : idleInterval;
+        return pause.compareTo(polling.getMinIdleInterval()) < 0 ? polling.getMinIdleInterval() : pause;
+    }
+
+    private void pause(Duration duration) {
+        synchronized (monitor) {
+            if (!running) {
+                return;
+            }
+            try {
+                monitor.wait(Math.max(1, duration.toMillis()));
+            } catch (InterruptedException e) {
+                running = false;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -1,130 +1,465 @@
 package com.eainde.retry.scheduler;
 
+import com.eainde.retry.HandlerConfig;
+import com.eainde.retry.backoff.BackoffPolicies;
+import com.eainde.retry.backoff.BackoffPolicy;
 import com.eainde.retry.config.KafkaRetryProperties;
 import com.eainde.retry.model.FailedMessage;
 import com.eainde.retry.model.MessageStatus;
-import com.eainde.retry.repository.FailedMessageRepository;
+import com.eainde.retry.repository.FailedMessageClaimer;
+import com.eainde.retry.repository.FailedMessageReader;
+import com.eainde.retry.repository.FailedMessageStatusWriter;
+import com.eainde.retry.repository.QualifierFilter;
 import com.eainde.retry.service.RetryMessageHandler;
 import lombok.extern.slf4j.Slf4j;
-import net.javacrumbs.shedlock.spring.annotation.SchedulerLock;
+import net.javacrumbs.shedlock.core.LockConfiguration;
+import net.javacrumbs.shedlock.core.LockingTaskExecutor;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.support.CronExpression;
 import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 @Slf4j
 @Component
 public class RetryScheduler {
 
-    private final FailedMessageRepository failedMessageRepository;
-    private final RetryMessageHandler retryMessageHandler;
+    private static final String LOCK_NAME = "kafkaMessageRetryScheduler";
+    private static final Duration LOCK_AT_MOST_FOR = Duration.ofMinutes(5);
+    private static final Duration LOCK_AT_LEAST_FOR = Duration.ofSeconds(30);
+
+    /**
+     * The lane of messages without a qualifier, or whose handler bean does not exist.
+     */
+    private static final String DEFAULT_LANE = "<default>";
+
+    private final FailedMessageReader failedMessageReader;
     private final KafkaRetryProperties properties;
+    private final RetryDispatcher retryDispatcher;
+    private final FailedMessageStatusWriter statusWriter;
+    private final FailedMessageClaimer claimer;
+    private final LockingTaskExecutor lockingTaskExecutor;
+    private final NearTermRetryTimer nearTermRetryTimer;
+    private final BackoffPolicy defaultBackoffPolicy;
+    private final Map<String, HandlerLane> lanesByQualifier = new LinkedHashMap<>();
+    private final HandlerLane defaultLane;
+    private final List<FairShareSelector.Lane<HandlerLane>> fairShareLanes = new ArrayList<>();
+    private final FairShareSelector<HandlerLane> fairShareSelector = new FairShareSelector<>();
 
-    public RetryScheduler(RetryMessageHandler retryMessageHandler, FailedMessageRepository failedMessageRepository, KafkaRetryProperties properties) {
-        this.retryMessageHandler = retryMessageHandler;
-        this.failedMessageRepository = failedMessageRepository;
+    /**
+     * @param handlers The RetryMessageHandler beans by bean name; messages are routed by their qualifier.
+     * @param defaultHandler The handler for messages without a known qualifier, or null if there is none.
+     * @param failedMessageReader The reader that polls due messages and fetches their payloads.
+     * @param properties The configured retry properties.
+     * @param retryDispatcher The worker pool that runs the handlers.
+     * @param statusWriter The writer that persists the outcome of each batch.
+     * @param claimer The claimer used in CLAIM coordination mode.
+     * @param lockingTaskExecutor The ShedLock executor used in SHEDLOCK coordination mode.
+     * @param nearTermRetryTimer The timing wheel for near-term retries, or null if disabled.
+     * @param defaultBackoffPolicy The delay between retries of handlers without their own backoff settings.
+     */
+    public RetryScheduler(Map<String, RetryMessageHandler> handlers, RetryMessageHandler defaultHandler,
+                          FailedMessageReader failedMessageReader,
+                          KafkaRetryProperties properties, RetryDispatcher retryDispatcher,
+                          FailedMessageStatusWriter statusWriter, FailedMessageClaimer claimer,
+                          LockingTaskExecutor lockingTaskExecutor, NearTermRetryTimer nearTermRetryTimer,
+                          BackoffPolicy defaultBackoffPolicy) {
+        this.failedMessageReader = failedMessageReader;
         this.properties = properties;
+        this.retryDispatcher = retryDispatcher;
+        this.statusWriter = statusWriter;
+        this.claimer = claimer;
+        this.lockingTaskExecutor = lockingTaskExecutor;
+        this.nearTermRetryTimer = nearTermRetryTimer;
+        this.defaultBackoffPolicy = defaultBackoffPolicy;
+        handlers.forEach((qualifier, handler) -> {
+            HandlerConfig config = findHandlerConfig(qualifier);
+            lanesByQualifier.put(qualifier, new HandlerLane(qualifier, handler, QualifierFilter.forHandler(qualifier),
+                    batchSizeOf(config), weightOf(config), maxInFlightOf(config), circuitBreakerOf(qualifier),
+                    rateLimiterOf(config), backoffPolicyOf(config)));
+        });
+        this.defaultLane = new HandlerLane(DEFAULT_LANE, defaultHandler,
+                QualifierFilter.unassigned(List.copyOf(lanesByQualifier.keySet())),
+                properties.getBatchSize(), 1, properties.getDispatch().getMaxInFlightPerHandler(),
+                circuitBreakerOf(DEFAULT_LANE), rateLimiterOf(null), defaultBackoffPolicy);
+        for (HandlerLane lane : allLanes()) {
+            fairShareLanes.add(new FairShareSelector.Lane<>(lane.name(), lane.weight(), lane.batchSize(), lane));
+        }
+        if (defaultHandler == null) {
+            log.warn("No unique RetryMessageHandler bean. Messages without a known handler qualifier will fail their retries.");
+        }
+        if (nearTermRetryTimer != null) {
+            nearTermRetryTimer.setExpiryHandler(this::retryNow);
+        }
+        warnIfIntervalsBelowPollingPrecision();
     }
 
+    /**
+     * Cron entry point of the retry job. Does nothing when {@code kafka.retry.polling.mode}
+     * is CONTINUOUS, in which case {@link RetryPollingLoop} drives {@link #pollOnce()} instead.
+     */
     @Scheduled(cron = "${kafka.retry.cron:0 * * * * *}")
-    @SchedulerLock(name = "kafkaMessageRetryScheduler", lockAtMostFor = "5m", lockAtLeastFor = "30s")
     public void processFailedMessages() {
+        if (properties.getPolling().getMode() == KafkaRetryProperties.PollingMode.CONTINUOUS) {
+            return;
+        }
+        runCoordinated(LOCK_AT_LEAST_FOR);
+    }
+
+    /**
+     * Runs a single fetch-and-dispatch cycle for the continuous polling loop.
+     * The ShedLock lock (if used) is released as soon as the cycle ends so the loop can go again.
+     *
+     * @return The number of messages fetched in this cycle.
+     */
+    public int pollOnce() {
+        return runCoordinated(Duration.ZERO);
+    }
+
+    /**
+     * In CLAIM mode every node runs the job and claims its own rows; in SHEDLOCK mode the job
+     * runs under a cluster-wide lock, so only one node retries at a time.
+     */
+    private int runCoordinated(Duration lockAtLeastFor) {
+        if (isClaimMode()) {
+            return retryDueMessages();
+        }
+        try {
+            LockingTaskExecutor.TaskResult<Integer> result = lockingTaskExecutor.executeWithLock(
+                    this::retryDueMessages,
+                    new LockConfiguration(Instant.now(), LOCK_NAME, LOCK_AT_MOST_FOR, lockAtLeastFor));
+            return result.wasExecuted() ? result.getResult() : 0;
+        } catch (Throwable t) {
+            ReflectionUtils.rethrowRuntimeException(t);
+            return 0;
+        }
+    }
+
+    private int retryDueMessages() {
         log.info("Starting failed message retry job.");
 
-        LocalDateTime now = LocalDateTime.now();
-        /*List<FailedMessage> messagesToRetry = failedMessageRepository.findAll().stream()
-                .filter(msg -> msg.getStatus() == MessageStatus.FAILED)
-                .filter(msg -> isReadyForRetry(msg, now))
-                .toList();*/
-        List<FailedMessage> messagesToRetry = failedMessageRepository.findMessagesToRetry(
-                LocalDateTime.now(),
-                properties.getInitialIntervalMinutes(),
-                properties.getBatchSize(),
-                properties.getMaxRetries()
-        );
+        List<FailedMessage> messagesToRetry = fetchDueMessages(LocalDateTime.now());
 
         if (messagesToRetry.isEmpty()) {
             log.info("No messages due for retry.");
-            return;
+            return 0;
         }
 
         log.info("Found {} messages to retry.", messagesToRetry.size());
 
-        for (FailedMessage message : messagesToRetry) {
-            processMessage(message);
-        }
+        dispatchBatch(messagesToRetry);
 
         log.info("Finished failed message retry job.");
+        return messagesToRetry.size();
     }
 
-    private boolean isReadyForRetry(FailedMessage message, LocalDateTime now) {
-        long intervalMinutes = (long) (properties.getInitialIntervalMinutes() * Math.pow(2, message.getRetryCount()));
-        LocalDateTime nextAttemptTime = message.getLastAttemptTime().plusMinutes(intervalMinutes);
-        return now.isAfter(nextAttemptTime);
+    /**
+     * Retries messages fired by the timing wheel. They are already claimed by this node.
+     */
+    private void retryNow(List<FailedMessage> dueMessages) {
+        log.debug("Retrying {} messages from the timing wheel.", dueMessages.size());
+        dispatchBatch(dueMessages);
     }
 
-    private void processMessage(FailedMessage message) {
+    private void dispatchBatch(List<FailedMessage> messages) {
+        // Polls only read retry metadata; fetch the payloads of this batch in bulk.
+        failedMessageReader.loadPayloads(messages);
+        // Resolve each message's lane once; every lane has its own concurrency cap.
+        Map<FailedMessage, HandlerLane> lanes = new IdentityHashMap<>(messages.size());
+        for (FailedMessage message : messages) {
+            lanes.put(message, laneOf(message));
+        }
+        // Blocks until the whole batch is done so the lock or claim lease covers every attempt.
+        RetryOutcomeBuffer outcomes = new RetryOutcomeBuffer(statusWriter, claimer.getNodeId());
+        Queue<FailedMessage> reservedForWheel = new ConcurrentLinkedQueue<>();
+        retryDispatcher.dispatch(messages,
+                message -> lanes.get(message).name(),
+                this::maxInFlightOfLane,
+                laneName -> laneNamed(laneName).rateLimiter(),
+                message -> processMessage(message, lanes.get(message), outcomes, reservedForWheel));
+        outcomes.flush();
+
+        // Only hand messages to the wheel once their new state is persisted. Messages abandoned
+        // by a batch timeout still carry the poll's claim, so they are never inferred from it.
+        if (nearTermRetryTimer != null) {
+            reservedForWheel.forEach(nearTermRetryTimer::schedule);
+        }
+    }
+
+    private boolean isClaimMode() {
+        return properties.getCoordination().getMode() == KafkaRetryProperties.CoordinationMode.CLAIM;
+    }
+
+    /**
+     * Fetches the next batch, without payloads. The {@code batch-size} budget is shared across
+     * the handler lanes by weight (see {@link FairShareSelector}), each lane fetching at most its
+     * own batch size, so a handler with a large backlog cannot crowd the others out. Lanes whose
+     * circuit breaker is open are not polled, and a half-open lane polls a single probe message.
+     * A rate-limited lane polls only the rows its token bucket can serve within the lookahead.
+     * In CLAIM mode the rows are first claimed for this node so that concurrent pollers on
+     * other nodes receive disjoint batches.
+     */
+    private List<FailedMessage> fetchDueMessages(LocalDateTime now) {
+        int maxRetries = properties.getMaxRetries();
+        long lookaheadNanos = properties.getRateLimit().getLookahead().toNanos();
+        if (!isClaimMode()) {
+            return fairShareSelector.select(fairShareLanes, properties.getBatchSize(), (lane, limit) -> {
+                int permitted = lane.permittedRows(limit, lookaheadNanos);
+                return permitted > 0
+                        ? failedMessageReader.findDueMessages(lane.filter(), now, maxRetries, permitted)
+                        : List.<FailedMessage>of();
+            });
+        }
+        List<Long> claimedIds = fairShareSelector.select(fairShareLanes, properties.getBatchSize(), (lane, limit) -> {
+            int permitted = lane.permittedRows(limit, lookaheadNanos);
+            return permitted > 0
+                    ? claimer.claimDueMessages(lane.filter(), now, maxRetries, permitted)
+                    : List.<Long>of();
+        });
+        if (claimedIds.isEmpty()) {
+            return List.of();
+        }
+        log.debug("Node '{}' claimed {} messages.", claimer.getNodeId(), claimedIds.size());
+        return failedMessageReader.findByIds(claimedIds);
+    }
+
+    private List<HandlerLane> allLanes() {
+        List<HandlerLane> lanes = new ArrayList<>(lanesByQualifier.values());
+        lanes.add(defaultLane);
+        return lanes;
+    }
+
+    private HandlerLane laneOf(FailedMessage message) {
+        HandlerLane lane = message.getHandlerQualifier() != null ? lanesByQualifier.get(message.getHandlerQualifier()) : null;
+        return lane != null ? lane : defaultLane;
+    }
+
+    private int maxInFlightOfLane(String laneName) {
+        return laneNamed(laneName).maxInFlight();
+    }
+
+    private HandlerLane laneNamed(String laneName) {
+        HandlerLane lane = lanesByQualifier.get(laneName);
+        return lane != null ? lane : defaultLane;
+    }
+
+    /**
+     * Finds the mapping of a handler, consumer side first. Handlers without a mapping use the global settings.
+     */
+    private HandlerConfig findHandlerConfig(String qualifier) {
+        Map<String, Map<String, HandlerConfig>> mappings = properties.getHandlerMappings();
+        if (mappings == null) {
+            return null;
+        }
+        for (String context : List.of("consumer", "producer")) {
+            Map<String, HandlerConfig> contextMappings = mappings.get(context);
+            if (contextMappings != null && contextMappings.get(qualifier) != null) {
+                return contextMappings.get(qualifier);
+            }
+        }
+        return null;
+    }
+
+    private int batchSizeOf(HandlerConfig config) {
+        return config != null && config.getBatchSize() != null ? config.getBatchSize() : properties.getBatchSize();
+    }
+
+    private int weightOf(HandlerConfig config) {
+        return config != null && config.getWeight() != null ? Math.max(1, config.getWeight()) : 1;
+    }
+
+    private int maxInFlightOf(HandlerConfig config) {
+        return config != null && config.getMaxInFlight() != null
+                ? config.getMaxInFlight()
+                : properties.getDispatch().getMaxInFlightPerHandler();
+    }
+
+    private HandlerCircuitBreaker circuitBreakerOf(String laneName) {
+        KafkaRetryProperties.CircuitBreaker settings = properties.getCircuitBreaker();
+        return settings.isEnabled() ? new HandlerCircuitBreaker(laneName, settings) : null;
+    }
+
+    private HandlerRateLimiter rateLimiterOf(HandlerConfig config) {
+        KafkaRetryProperties.RateLimit settings = properties.getRateLimit();
+        double permitsPerSecond = config != null && config.getPermitsPerSecond() != null
+                ? config.getPermitsPerSecond()
+                : settings.getPermitsPerSecond();
+        if (permitsPerSecond <= 0) {
+            return null;
+        }
+        Integer burst = config != null && config.getBurst() != null ? config.getBurst() : settings.getBurst();
+        return new HandlerRateLimiter(permitsPerSecond, burst != null ? burst : (int) Math.ceil(permitsPerSecond));
+    }
+
+    private BackoffPolicy backoffPolicyOf(HandlerConfig config) {
+        return config != null && config.getBackoff() != null
+                ? BackoffPolicies.create(config.getBackoff(), properties)
+                : defaultBackoffPolicy;
+    }
+
+    /**
+     * Retries run no earlier than the next poll, so intervals shorter than the gap between polls
+     * are not honoured. Sub-second intervals need the timing wheel, which fires within one tick.
+     */
+    private void warnIfIntervalsBelowPollingPrecision() {
+        Duration shortest = BackoffPolicies.initialInterval(properties.getBackoff(), properties);
+        if (properties.getHandlerMappings() != null) {
+            for (Map<String, HandlerConfig> contextMappings : properties.getHandlerMappings().values()) {
+                if (contextMappings == null) {
+                    continue;
+                }
+                for (HandlerConfig config : contextMappings.values()) {
+                    if (config != null && config.getBackoff() != null) {
+                        Duration interval = BackoffPolicies.initialInterval(config.getBackoff(), properties);
+                        shortest = interval.compareTo(shortest) < 0 ? interval : shortest;
+                    }
+                }
+            }
+        }
+        Duration precision = pollingPrecision();
+        if (precision != null && shortest.compareTo(precision) < 0) {
+            log.warn("The shortest retry interval ({}) is below the polling precision ({}), so retries will run late. "
+                    + "Enable kafka.retry.timing-wheel (CLAIM mode) or use kafka.retry.polling.mode=CONTINUOUS.", shortest, precision);
+        }
+    }
+
+    /**
+     * @return The longest a due message can wait for the next poll, or null if unknown.
+     */
+    private Duration pollingPrecision() {
+        if (properties.getTimingWheel().isEnabled()) {
+            return properties.getTimingWheel().getTick();
+        }
+        if (properties.getPolling().getMode() == KafkaRetryProperties.PollingMode.CONTINUOUS) {
+            return properties.getPolling().getMinIdleInterval();
+        }
+        try {
+            CronExpression cron = CronExpression.parse(properties.getCron());
+            LocalDateTime first = cron.next(LocalDateTime.now());
+            LocalDateTime second = first != null ? cron.next(first) : null;
+            return second != null ? Duration.between(first, second) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param reservedForWheel Collects the messages whose next attempt the timing wheel reserved.
+     */
+    private void processMessage(FailedMessage message, HandlerLane lane, RetryOutcomeBuffer outcomes,
+                                Queue<FailedMessage> reservedForWheel) {
+        message.setAttemptRetryCount(message.getRetryCount());
+        HandlerCircuitBreaker circuitBreaker = lane.circuitBreaker();
+        if (lane.handler() != null && circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            skipAttempt(message, lane, outcomes);
+            return;
+        }
         try {
-            retryMessageHandler.handle(message);
+            if (lane.handler() == null) {
+                throw new IllegalStateException("No RetryMessageHandler bean named '" + message.getHandlerQualifier() + "'");
+            }
+            try {
+                lane.handler().handle(message);
+            } catch (Exception e) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.onFailure();
+                }
+                throw e;
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess();
+            }
             message.setStatus(MessageStatus.PROCESSED);
             log.info("Successfully processed message ID: {}", message.getId());
         } catch (Exception e) {
-            handleProcessingFailure(message, e);
+            if (handleProcessingFailure(message, lane.backoffPolicy(), e)) {
+                reservedForWheel.add(message);
+            }
         } finally {
-            failedMessageRepository.save(message);
+            outcomes.record(message);
         }
     }
 
-    private void handleProcessingFailure(FailedMessage message, Exception e) {
+    /**
+     * Leaves a message of a handler whose circuit breaker is open as it was: no attempt is made
+     * and its retry count is not increased. A claimed row is released so it is polled again once
+     * the breaker lets attempts through; an unclaimed row is not written at all.
+     */
+    private void skipAttempt(FailedMessage message, HandlerLane lane, RetryOutcomeBuffer outcomes) {
+        log.debug("Circuit breaker of handler '{}' is open. Skipping message ID: {}", lane.name(), message.getId());
+        if (message.getClaimedBy() != null) {
+            message.setClaimedBy(null);
+            message.setClaimExpiresAt(null);
+            outcomes.record(message);
+        }
+    }
+
+    /**
+     * Records a failed attempt on the message and computes its next attempt time.
+     *
+     * @return true if the timing wheel reserved the next attempt; the message must then be
+     * scheduled on the wheel once its outcome is written.
+     */
+    private boolean handleProcessingFailure(FailedMessage message, BackoffPolicy backoffPolicy, Exception e) {
         log.warn("Failed to process message ID: {}. Error: {}", message.getId(), e.getMessage());
+        Duration previousDelay = previousDelayOf(message);
         message.setRetryCount(message.getRetryCount() + 1);
         message.setLastAttemptTime(LocalDateTime.now());
+        // The policy runs here, once per failure; the due query only compares the stored timestamp.
+        message.setNextAttemptAt(message.getLastAttemptTime()
+                .plus(backoffPolicy.nextDelay(message.getRetryCount(), previousDelay)));
         message.setError(e.getMessage());
+        message.setClaimedBy(null);
+        message.setClaimExpiresAt(null);
 
         if (message.getRetryCount() >= properties.getMaxRetries()) {
             message.setStatus(MessageStatus.PERMANENT_FAILURE);
             log.error("Message ID: {} has reached max retries ({}) and is marked as PERMANENT_FAILURE.",
                     message.getId(), properties.getMaxRetries());
+            return false;
         }
+        // Keeps the row claimed for this node if the next attempt is close enough for the wheel.
+        return nearTermRetryTimer != null && nearTermRetryTimer.reserve(message);
     }
 
     /**
-     * Checks if a given exception is retryable based on the configuration.
-     * It checks the entire class hierarchy of the exception.
-     * @param e The exception that occurred.
-     * @return true if the exception should be retried, false otherwise.
+     * The delay that was scheduled before the attempt that just failed, or null before the first retry.
      */
-    private boolean isRetryable(Exception e) {
-        // 1. Check against the non-retryable list first (blacklist takes precedence)
-        for (String exClassName : properties.getNonRetryableExceptions()) {
-            try {
-                Class<?> exClass = Class.forName(exClassName);
-                if (exClass.isInstance(e)) {
-                    return false; // Match found in blacklist, not retryable
-                }
-            } catch (ClassNotFoundException classNotFoundException) {
-                logger.warn("Class not found in non-retryable exception list: {}", exClassName);
-            }
+    private static Duration previousDelayOf(FailedMessage message) {
+        if (message.getLastAttemptTime() == null || message.getNextAttemptAt() == null
+                || message.getNextAttemptAt().isBefore(message.getLastAttemptTime())) {
+            return null;
         }
+        return Duration.between(message.getLastAttemptTime(), message.getNextAttemptAt());
+    }
 
-        // 2. If a retryable list is provided, it acts as a whitelist
-        List<String> retryableExceptions = properties.getRetryableExceptions();
-        if (retryableExceptions != null && !retryableExceptions.isEmpty()) {
-            for (String exClassName : retryableExceptions) {
-                try {
-                    Class<?> exClass = Class.forName(exClassName);
-                    if (exClass.isInstance(e)) {
-                        return true; // Match found in whitelist, is retryable
-                    }
-                } catch (ClassNotFoundException classNotFoundException) {
-                    logger.warn("Class not found in retryable exception list: {}", exClassName);
-                }
-            }
-            return false; // Whitelist exists, but no match was found
-        }
+    /**
+     * The messages of one handler: how they are polled, their share of a batch, how many run at
+     * once, how long they wait between retries and, if enabled, the circuit breaker that pauses
+     * them and the token bucket that paces them.
+     */
+    private record HandlerLane(String name, RetryMessageHandler handler, QualifierFilter filter,
+                               int batchSize, int weight, int maxInFlight, HandlerCircuitBreaker circuitBreaker,
+                               HandlerRateLimiter rateLimiter, BackoffPolicy backoffPolicy) {
 
-        // 3. Default case: Not in the blacklist and no whitelist is configured, so retry.
-        return true;
+        /**
+         * @param requested The rows the fair share allows this lane.
+         * @param lookaheadNanos How far ahead the rate limiter's permits are counted.
+         * @return The rows the lane's circuit breaker and rate limiter allow it to poll.
+         */
+        int permittedRows(int requested, long lookaheadNanos) {
+            int permitted = circuitBreaker != null ? circuitBreaker.permittedRows(requested) : requested;
+            return rateLimiter != null && permitted > 0 ? rateLimiter.available(permitted, lookaheadNanos) : permitted;
+        }
     }
 }
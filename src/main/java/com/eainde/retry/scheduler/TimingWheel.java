@@ -0,0 +1,150 @@
+package com.eainde.retry.scheduler;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A hierarchical timing wheel. The lowest level has {@code wheelSize} buckets of {@code tickMillis}
+ * each; entries further out than one rotation go to an overflow level whose tick is the full
+ * interval of the level below, created on demand. When an overflow bucket expires its entries
+ * cascade down into finer buckets, so adding and expiring an entry is O(1) per level regardless
+ * of how many entries are pending.
+ *
+ * Non-empty buckets are tracked in a priority queue ordered by expiration, which holds at most a
+ * few hundred buckets, so advancing the clock never scans empty slots.
+ *
+ * Not thread-safe; callers must synchronize access.
+ *
+ * @param <T> The type of the scheduled items.
+ */
+public final class TimingWheel<T> {
+
+    private final PriorityQueue<Bucket<T>> pendingBuckets =
+            new PriorityQueue<>(Comparator.comparingLong(bucket -> bucket.expiration));
+    private final Level root;
+    private int size;
+
+    /**
+     * @param tickMillis The resolution of the lowest level in milliseconds.
+     * @param wheelSize The number of buckets per level.
+     * @param startMillis The current time in epoch milliseconds.
+     */
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        }
+        // Start one tick back so that add() never reports a future item as already due.
+        this.root = new Level(tickMillis, wheelSize, startMillis - tickMillis);
+    }
+
+    /**
+     * Schedules an item.
+     *
+     * @param expirationMillis When the item is due, in epoch milliseconds.
+     * @param item The item to schedule.
+     * @return false if the item is already due and was not added.
+     */
+    public boolean add(long expirationMillis, T item) {
+        boolean added = root.add(new Entry<>(expirationMillis, item));
+        if (added) {
+            size++;
+        }
+        return added;
+    }
+
+    /**
+     * Advances the clock and removes every item that is due. Items are never returned before
+     * their expiration; they are late by at most the interval between calls.
+     *
+     * @param nowMillis The current time in epoch milliseconds.
+     * @return The due items, in no particular order.
+     */
+    public List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        // A bucket covers [expiration, expiration + tick), so it is only complete one tick later.
+        long flushThreshold = nowMillis - root.tickMillis + 1;
+        Bucket<T> bucket;
+        while ((bucket = pendingBuckets.peek()) != null && bucket.expiration <= flushThreshold) {
+            pendingBuckets.poll();
+            root.advanceClock(bucket.expiration);
+            List<Entry<T>> entries = bucket.entries;
+            bucket.entries = new ArrayList<>();
+            bucket.expiration = -1L;
+            // Entries from an overflow level cascade into a finer bucket unless they are due now.
+            for (Entry<T> entry : entries) {
+                if (!root.add(entry)) {
+                    expired.add(entry.item);
+                }
+            }
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * @return The number of items currently scheduled.
+     */
+    public int size() {
+        return size;
+    }
+
+    private record Entry<T>(long expiration, T item) {
+    }
+
+    private static final class Bucket<T> {
+        private long expiration = -1L;
+        private List<Entry<T>> entries = new ArrayList<>();
+    }
+
+    private final class Level {
+        private final long tickMillis;
+        private final int wheelSize;
+        private final long interval;
+        private final List<Bucket<T>> buckets;
+        private long currentTime;
+        private Level overflow;
+
+        private Level(long tickMillis, int wheelSize, long startMillis) {
+            this.tickMillis = tickMillis;
+            this.wheelSize = wheelSize;
+            this.interval = tickMillis * wheelSize;
+            this.currentTime = startMillis - (startMillis % tickMillis);
+            this.buckets = new ArrayList<>(wheelSize);
+            for (int i = 0; i < wheelSize; i++) {
+                buckets.add(new Bucket<>());
+            }
+        }
+
+        private boolean add(Entry<T> entry) {
+            if (entry.expiration() < currentTime + tickMillis) {
+                return false;
+            }
+            if (entry.expiration() < currentTime + interval) {
+                long virtualId = entry.expiration() / tickMillis;
+                Bucket<T> bucket = buckets.get((int) (virtualId % wheelSize));
+                bucket.entries.add(entry);
+                long bucketExpiration = virtualId * tickMillis;
+                if (bucket.expiration != bucketExpiration) {
+                    bucket.expiration = bucketExpiration;
+                    pendingBuckets.offer(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Level(interval, wheelSize, currentTime);
+            }
+            return overflow.add(entry);
+        }
+
+        private void advanceClock(long timeMillis) {
+            if (timeMillis >= currentTime + tickMillis) {
+                currentTime = timeMillis - (timeMillis % tickMillis);
+                if (overflow != null) {
+                    overflow.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+}
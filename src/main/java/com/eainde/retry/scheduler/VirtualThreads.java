@@ -0,0 +1,41 @@
+package com.eainde.retry.scheduler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual thread executors on the Java 17 baseline.
+ * The Java 21 build ({@code -Pjava21}) ships a multi-release variant of this class
+ * under {@code src/main/java21} that calls the virtual thread API directly.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates an executor that starts a new, named virtual thread for each task.
+     * Looked up reflectively so the class still compiles for Java 17.
+     *
+     * @param namePrefix The prefix for the names of the created threads.
+     * @return A thread-per-task executor backed by virtual threads.
+     * @throws IllegalStateException if the runtime does not support virtual threads.
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        try {
+            // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 1).factory())
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            throw new IllegalStateException("kafka.retry.dispatch.thread-mode=VIRTUAL requires Java 21 or later.", e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor.", e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.eainde.retry.service;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.repository.FailedMessageRepository;
+import com.eainde.retry.scheduler.NearTermRetryTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, asynchronous write-behind queue for new failed messages.
+ * Kafka listener and producer-callback threads only enqueue; a single writer thread drains the
+ * queue and inserts up to {@code flush-size} messages per transaction, waiting at most
+ * {@code flush-interval} for a batch to fill. What happens when the queue is full is decided by
+ * the configured {@link KafkaRetryProperties.OverflowPolicy}.
+ *
+ * The buffer stops after the Kafka listener containers and flushes everything still queued
+ * before the application context closes.
+ */
+public class FailedMessageWriteBehindBuffer implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(FailedMessageWriteBehindBuffer.class);
+
+    /**
+     * Lower than the listener containers' phase, so they stop (and stop producing failures) first.
+     */
+    private static final int PHASE = Integer.MAX_VALUE - 1000;
+
+    private final FailedMessageRepository repository;
+    private final TransactionTemplate transactionTemplate;
+    private final KafkaRetryProperties.WriteBehind settings;
+    private final NearTermRetryTimer nearTermRetryTimer;
+    private final BlockingQueue<FailedMessage> queue;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    /**
+     * @param repository The repository for persisting failed messages.
+     * @param transactionTemplate The template that wraps each batch in one transaction.
+     * @param properties The configured retry properties.
+     * @param nearTermRetryTimer The timing wheel for reserved messages, or null if disabled.
+     */
+    public FailedMessageWriteBehindBuffer(FailedMessageRepository repository, TransactionTemplate transactionTemplate,
+                                          KafkaRetryProperties properties, NearTermRetryTimer nearTermRetryTimer) {
+        this.repository = repository;
+        this.transactionTemplate = transactionTemplate;
+        this.settings = properties.getWriteBehind();
+        this.nearTermRetryTimer = nearTermRetryTimer;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, settings.getCapacity()));
+    }
+
+    /**
+     * Queues a message for insertion. Falls back to a synchronous insert while the buffer is not running.
+     *
+     * @param message The new failed message.
+     */
+    public void enqueue(FailedMessage message) {
+        if (!running) {
+            write(List.of(message));
+            return;
+        }
+        switch (settings.getOverflowPolicy()) {
+            case BLOCK -> {
+                try {
+                    if (!queue.offer(message, settings.getBlockTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                        logger.warn("Write-behind buffer still full after {}. Saving failed message synchronously.",
+                                settings.getBlockTimeout());
+                        write(List.of(message));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    write(List.of(message));
+                }
+            }
+            case CALLER_RUNS -> {
+                if (!queue.offer(message)) {
+                    write(List.of(message));
+                }
+            }
+            case DROP -> {
+                if (!queue.offer(message)) {
+                    logger.error("Write-behind buffer is full ({} messages). Dropping failed Kafka message.",
+                            settings.getCapacity());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::drainLoop, "kafka-retry-write-behind");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            writerThread.join(settings.getShutdownTimeout().toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything enqueued while the writer was exiting.
+        List<FailedMessage> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            write(remaining);
+        }
+        logger.info("Flushed write-behind buffer on shutdown.");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    private void drainLoop() {
+        int flushSize = Math.max(1, settings.getFlushSize());
+        long flushIntervalNanos = settings.getFlushInterval().toNanos();
+        List<FailedMessage> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                FailedMessage first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Wait up to flush-interval after the first message for the batch to fill.
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < flushSize) {
+                    queue.drainTo(batch, flushSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= flushSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    FailedMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch = new ArrayList<>(flushSize);
+            }
+        }
+    }
+
+    /**
+     * Inserts the batch in one transaction. If that fails, each message is retried on its own
+     * so that one bad row does not lose the rest of the batch.
+     */
+    private void write(List<FailedMessage> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> repository.saveAll(batch));
+            afterWrite(batch);
+            logger.debug("Saved {} failed Kafka messages to the database for retry.", batch.size());
+            return;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                logger.error("Failed to save Kafka message to the retry database.", e);
+                return;
+            }
+            logger.warn("Batch insert of {} failed messages failed. Saving them one by one. Error: {}",
+                    batch.size(), e.getMessage());
+        }
+        for (FailedMessage message : batch) {
+            // The rolled-back batch already assigned ids. With an id set, save() would merge the
+            // entity (a SELECT per row) instead of inserting it, so each row draws a fresh id.
+            message.setId(null);
+        }
+        for (FailedMessage message : batch) {
+            try {
+                repository.save(message);
+                afterWrite(List.of(message));
+            } catch (Exception e) {
+                logger.error("Failed to save Kafka message to the retry database.", e);
+            }
+        }
+    }
+
+    private void afterWrite(List<FailedMessage> written) {
+        if (nearTermRetryTimer == null) {
+            return;
+        }
+        for (FailedMessage message : written) {
+            if (message.getClaimedBy() != null) {
+                nearTermRetryTimer.schedule(message);
+            }
+        }
+    }
+}
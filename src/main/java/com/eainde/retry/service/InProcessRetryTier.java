@@ -0,0 +1,268 @@
+package com.eainde.retry.service;
+
+import com.eainde.retry.ExceptionRetryabilityChecker;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.model.FailedMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The first retry tier: retries a failed message in memory a few times with a short backoff
+ * before it is written to the failed_messages table.
+ *
+ * The listener thread only hands the message over. A timer waits out each delay without holding
+ * a thread, and the attempt itself runs the message's {@link RetryMessageHandler} on a small
+ * worker pool. A message that succeeds is never stored; one that fails with a non-retryable
+ * exception is stored as a permanent failure; one that is still failing after
+ * {@code max-attempts} is stored for the scheduler, as if this tier did not exist.
+ *
+ * At most {@code capacity} messages are held at once; beyond that, and whenever the tier is not
+ * running, failures are stored straight away. On a graceful shutdown every message still held is
+ * stored. The tier stops after the Kafka listener containers and before the write-behind buffer,
+ * so those final inserts are still flushed.
+ *
+ * Held messages exist only in memory. The listener has already committed the offset of the failed
+ * record, so if the process dies without a graceful shutdown (a crash, {@code kill -9}, an
+ * out-of-memory error) they are lost: up to {@code capacity} messages, each for at most the sum of
+ * its in-memory backoff delays. Only enable the tier for messages that may be lost that way.
+ */
+public class InProcessRetryTier implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(InProcessRetryTier.class);
+
+    /**
+     * Between the listener containers' phase and that of the write-behind buffer.
+     */
+    private static final int PHASE = Integer.MAX_VALUE - 500;
+
+    private final Map<String, RetryMessageHandler> handlers;
+    private final KafkaRetryService retryService;
+    private final ExceptionRetryabilityChecker retryabilityChecker;
+    private final KafkaRetryProperties.InProcess settings;
+    // The messages held by this tier. Whoever removes a message from the set stores or drops it.
+    private final Set<Attempt> held = ConcurrentHashMap.newKeySet();
+    // One permit per message that may be held; taken before a message joins the set, returned once it leaves.
+    private final Semaphore slots;
+
+    private volatile boolean running;
+    private ScheduledExecutorService timer;
+    private ExecutorService workers;
+
+    /**
+     * @param handlers The RetryMessageHandler beans by bean name.
+     * @param retryService The service that stores the messages that still fail.
+     * @param retryabilityChecker Classifies the exceptions of in-memory attempts.
+     * @param properties The configured retry properties.
+     */
+    public InProcessRetryTier(Map<String, RetryMessageHandler> handlers, KafkaRetryService retryService,
+                              ExceptionRetryabilityChecker retryabilityChecker, KafkaRetryProperties properties) {
+        this.handlers = handlers;
+        this.retryService = retryService;
+        this.retryabilityChecker = retryabilityChecker;
+        this.settings = properties.getInProcess();
+        this.slots = new Semaphore(Math.max(0, settings.getCapacity()));
+    }
+
+    /**
+     * Takes over a retryable failure. Never blocks and never throws.
+     *
+     * @param failure A failure that was classified as retryable.
+     */
+    public void submit(KafkaRetryService.CapturedFailure failure) {
+        RetryMessageHandler handler = handlers.get(failure.handlerQualifier());
+        if (!running || handler == null || settings.getMaxAttempts() <= 0 || !slots.tryAcquire()) {
+            store(failure);
+            return;
+        }
+        Attempt attempt = new Attempt(failure, handler);
+        held.add(attempt);
+        scheduleNext(attempt);
+    }
+
+    @Override
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(threadFactory("kafka-retry-in-process-timer-"));
+        workers = Executors.newFixedThreadPool(Math.max(1, settings.getPoolSize()),
+                threadFactory("kafka-retry-in-process-"));
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        timer.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(settings.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        List<KafkaRetryService.CapturedFailure> remaining = new ArrayList<>();
+        for (Attempt attempt : new ArrayList<>(held)) {
+            if (remove(attempt)) {
+                remaining.add(attempt.failure());
+            }
+        }
+        if (!remaining.isEmpty()) {
+            retryService.saveFailedMessages(remaining);
+        }
+        logger.info("Stopped in-process retries. Stored {} messages that were still pending.", remaining.size());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    private void scheduleNext(Attempt attempt) {
+        long delayMillis = (long) (settings.getInitialDelay().toMillis()
+                * Math.pow(settings.getMultiplier(), attempt.attempts()));
+        try {
+            timer.schedule(() -> execute(attempt), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            release(attempt, true);
+        }
+    }
+
+    private void execute(Attempt attempt) {
+        try {
+            workers.execute(() -> run(attempt));
+        } catch (RejectedExecutionException e) {
+            release(attempt, true);
+        }
+    }
+
+    private void run(Attempt attempt) {
+        KafkaRetryService.CapturedFailure failure = attempt.failure();
+        int attemptNumber = attempt.incrementAttempts();
+        try {
+            attempt.handler().handle(toMessage(failure, attemptNumber));
+            if (remove(attempt)) {
+                logger.info("In-process retry {} succeeded for handler '{}'. The message is not stored.",
+                        attemptNumber, failure.handlerQualifier());
+            }
+        } catch (Exception e) {
+            if (!retryabilityChecker.isRetryable(e, failure.handlerQualifier(), failure.context())) {
+                logger.error("In-process retry {} for handler '{}' failed with a non-retryable error. Storing as PERMANENT_FAILURE.",
+                        attemptNumber, failure.handlerQualifier(), e);
+                release(attempt, false);
+            } else if (attemptNumber >= settings.getMaxAttempts() || !running) {
+                logger.warn("In-process retry {} for handler '{}' failed. Storing the message for scheduled retries. Error: {}",
+                        attemptNumber, failure.handlerQualifier(), e.getMessage());
+                release(attempt, true);
+            } else {
+                logger.debug("In-process retry {} for handler '{}' failed. Error: {}",
+                        attemptNumber, failure.handlerQualifier(), e.getMessage());
+                scheduleNext(attempt);
+            }
+        }
+    }
+
+    /**
+     * Stores a held message, unless another thread (for example shutdown) already did.
+     */
+    private void release(Attempt attempt, boolean retryable) {
+        if (!remove(attempt)) {
+            return;
+        }
+        KafkaRetryService.CapturedFailure failure = attempt.failure();
+        store(retryable ? failure : failure.asPermanent());
+    }
+
+    /**
+     * @return true if the caller took the message out of this tier and must now store or drop it.
+     */
+    private boolean remove(Attempt attempt) {
+        if (!held.remove(attempt)) {
+            return false;
+        }
+        slots.release();
+        return true;
+    }
+
+    private void store(KafkaRetryService.CapturedFailure failure) {
+        try {
+            retryService.saveFailedMessage(failure);
+        } catch (Exception e) {
+            logger.error("Failed to store a message for handler '{}' after in-process retries.",
+                    failure.handlerQualifier(), e);
+        }
+    }
+
+    /**
+     * A transient message for the handler; it has no id because it is not stored.
+     */
+    private static FailedMessage toMessage(KafkaRetryService.CapturedFailure failure, int attemptNumber) {
+        FailedMessage message = new FailedMessage();
+        message.setPayloadBytes(failure.payload());
+        message.setContentType(failure.contentType());
+        message.setHandlerQualifier(failure.handlerQualifier());
+        message.setFailureContext(failure.context());
+        message.setRetryCount(attemptNumber - 1);
+        return message;
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A message held by this tier, with the number of in-memory attempts made so far.
+     * Compared by identity, so equal payloads are still distinct messages.
+     */
+    private static final class Attempt {
+
+        private final KafkaRetryService.CapturedFailure failure;
+        private final RetryMessageHandler handler;
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        private Attempt(KafkaRetryService.CapturedFailure failure, RetryMessageHandler handler) {
+            this.failure = failure;
+            this.handler = handler;
+        }
+
+        KafkaRetryService.CapturedFailure failure() {
+            return failure;
+        }
+
+        RetryMessageHandler handler() {
+            return handler;
+        }
+
+        int attempts() {
+            return attempts.get();
+        }
+
+        int incrementAttempts() {
+            return attempts.incrementAndGet();
+        }
+    }
+}
@@ -1,11 +1,22 @@
 package com.eainde.retry.service;
 
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
 import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.model.MessageStatus;
+import com.eainde.retry.model.PayloadCodec;
 import com.eainde.retry.repository.FailedMessageRepository;
+import com.eainde.retry.scheduler.NearTermRetryTimer;
+import com.eainde.retry.topic.RetryTopicPublisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A service for client applications to easily persist failed Kafka messages.
  */
@@ -14,25 +25,279 @@ public class KafkaRetryService {
 
     private static final Logger logger = LoggerFactory.getLogger(KafkaRetryService.class);
 
+    /**
+     * The content type recorded for payloads captured as Strings.
+     */
+    public static final String TEXT_CONTENT_TYPE = "text/plain;charset=UTF-8";
+
     private final FailedMessageRepository repository;
+    private final KafkaRetryProperties.Compression compression;
+    private final NearTermRetryTimer nearTermRetryTimer;
+    private final FailedMessageWriteBehindBuffer writeBehindBuffer;
+    private final RetryTopicPublisher retryTopicPublisher;
 
     public KafkaRetryService(FailedMessageRepository repository) {
+        this(repository, new KafkaRetryProperties(), null, null);
+    }
+
+    /**
+     * @param repository The repository for persisting failed messages.
+     * @param properties The configured retry properties.
+     * @param nearTermRetryTimer The timing wheel for immediate first retries, or null if disabled.
+     * @param writeBehindBuffer The asynchronous insert queue, or null to insert on the calling thread.
+     */
+    public KafkaRetryService(FailedMessageRepository repository, KafkaRetryProperties properties,
+                             NearTermRetryTimer nearTermRetryTimer, FailedMessageWriteBehindBuffer writeBehindBuffer) {
+        this(repository, properties, nearTermRetryTimer, writeBehindBuffer, null);
+    }
+
+    /**
+     * @param repository The repository for persisting failed messages.
+     * @param properties The configured retry properties.
+     * @param nearTermRetryTimer The timing wheel for immediate first retries, or null if disabled.
+     * @param writeBehindBuffer The asynchronous insert queue, or null to insert on the calling thread.
+     * @param retryTopicPublisher Publishes failures that know their topic to the delay topics instead
+     *                            of the table, or null if retry topics are disabled.
+     */
+    public KafkaRetryService(FailedMessageRepository repository, KafkaRetryProperties properties,
+                             NearTermRetryTimer nearTermRetryTimer, FailedMessageWriteBehindBuffer writeBehindBuffer,
+                             RetryTopicPublisher retryTopicPublisher) {
         this.repository = repository;
+        this.compression = properties.getCompression();
+        this.nearTermRetryTimer = nearTermRetryTimer;
+        this.writeBehindBuffer = writeBehindBuffer;
+        this.retryTopicPublisher = retryTopicPublisher;
     }
 
     /**
      * Saves a raw message payload to the database for later reprocessing.
+     * When the write-behind buffer is enabled the insert happens asynchronously.
      *
      * @param payload The string content of the failed Kafka message.
      */
     public void saveFailedMessage(String payload) {
+        persist(newRetryableMessage(toBytes(payload), TEXT_CONTENT_TYPE));
+    }
+
+    /**
+     * Saves a single classified failure. The payload bytes are stored as they are.
+     * When retry topics are enabled and the failure knows its topic, it is published to the first
+     * delay topic, or the dead-letter topic if it is not retryable, instead.
+     *
+     * @param failure The failed message, its handler and whether it is retryable.
+     */
+    public void saveFailedMessage(CapturedFailure failure) {
+        if (!publish(failure)) {
+            persist(toEntity(failure));
+        }
+    }
+
+    /**
+     * Saves a message that failed while being consumed, for retry by the given handler.
+     *
+     * @param payload The string content of the failed Kafka message.
+     * @param handlerQualifier The name of the handler bean responsible for the message.
+     */
+    public void saveFailedConsumerMessage(String payload, String handlerQualifier) {
+        saveFailedMessage(CapturedFailure.ofText(payload, handlerQualifier, RetryQualifierResolver.FailureContext.CONSUMER, true));
+    }
+
+    /**
+     * Saves a message that failed while being produced, for retry by the given handler.
+     *
+     * @param payload The string content of the failed Kafka message.
+     * @param handlerQualifier The name of the handler bean responsible for the message.
+     */
+    public void saveFailedProducerMessage(String payload, String handlerQualifier) {
+        saveFailedMessage(CapturedFailure.ofText(payload, handlerQualifier, RetryQualifierResolver.FailureContext.PRODUCER, true));
+    }
+
+    /**
+     * Records a consumed message whose failure is not retryable. It is never picked up by the scheduler.
+     *
+     * @param payload The string content of the failed Kafka message.
+     * @param handlerQualifier The name of the handler bean responsible for the message.
+     */
+    public void saveConsumerMessageAsPermanentFailure(String payload, String handlerQualifier) {
+        saveFailedMessage(CapturedFailure.ofText(payload, handlerQualifier, RetryQualifierResolver.FailureContext.CONSUMER, false));
+    }
+
+    /**
+     * Records a produced message whose failure is not retryable. It is never picked up by the scheduler.
+     *
+     * @param payload The string content of the failed Kafka message.
+     * @param handlerQualifier The name of the handler bean responsible for the message.
+     */
+    public void saveProducerMessageAsPermanentFailure(String payload, String handlerQualifier) {
+        saveFailedMessage(CapturedFailure.ofText(payload, handlerQualifier, RetryQualifierResolver.FailureContext.PRODUCER, false));
+    }
+
+    /**
+     * Saves the failures of a batch together: one transaction and batched inserts instead of one
+     * round trip per message. When the write-behind buffer is enabled the messages are queued instead.
+     *
+     * @param failures The classified failures, retryable or not.
+     */
+    public void saveFailedMessages(List<CapturedFailure> failures) {
+        if (failures.isEmpty()) {
+            return;
+        }
+        List<FailedMessage> messages = new ArrayList<>(failures.size());
+        for (CapturedFailure failure : failures) {
+            if (!publish(failure)) {
+                messages.add(toEntity(failure));
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (writeBehindBuffer != null) {
+            messages.forEach(this::persist);
+            return;
+        }
+        try {
+            List<FailedMessage> heldInWheel = reserve(messages);
+            repository.saveAll(messages);
+            heldInWheel.forEach(nearTermRetryTimer::schedule);
+            logger.info("Saved {} failed Kafka messages to the database.", messages.size());
+        } catch (Exception e) {
+            logger.error("Failed to save {} Kafka messages to the retry database.", messages.size(), e);
+        }
+    }
+
+    /**
+     * @return true if the failure went to a retry topic; false if it must be stored in the table,
+     * also when publishing failed, so that no message is lost.
+     */
+    private boolean publish(CapturedFailure failure) {
+        if (retryTopicPublisher == null || failure.topic() == null) {
+            return false;
+        }
+        try {
+            retryTopicPublisher.publish(failure);
+            return true;
+        } catch (Exception e) {
+            logger.error("Failed to publish a message of topic '{}' to its retry topic. Saving it to the database instead.",
+                    failure.topic(), e);
+            return false;
+        }
+    }
+
+    private FailedMessage toEntity(CapturedFailure failure) {
+        FailedMessage failedMessage = failure.retryable()
+                ? newRetryableMessage(failure.payload(), failure.contentType())
+                : newPermanentFailure(failure.payload(), failure.contentType());
+        failedMessage.setHandlerQualifier(failure.handlerQualifier());
+        failedMessage.setFailureContext(failure.context());
+        return failedMessage;
+    }
+
+    private FailedMessage newRetryableMessage(byte[] payload, String contentType) {
+        FailedMessage failedMessage = new FailedMessage();
+        setPayload(failedMessage, payload);
+        failedMessage.setContentType(contentType);
+        // Due on the next scheduler run, as before the first attempt.
+        failedMessage.setNextAttemptAt(LocalDateTime.now());
+        return failedMessage;
+    }
+
+    private FailedMessage newPermanentFailure(byte[] payload, String contentType) {
+        FailedMessage failedMessage = new FailedMessage();
+        setPayload(failedMessage, payload);
+        failedMessage.setContentType(contentType);
+        failedMessage.setStatus(MessageStatus.PERMANENT_FAILURE);
+        return failedMessage;
+    }
+
+    /**
+     * Compresses payloads at or above the threshold with the configured codec, unless that does
+     * not make them smaller.
+     */
+    private void setPayload(FailedMessage failedMessage, byte[] payload) {
+        PayloadCodec codec = compression.getCodec();
+        if (payload != null && codec != PayloadCodec.NONE && payload.length >= compression.getThreshold().toBytes()) {
+            byte[] encoded = codec.encode(payload, compression.getLevel());
+            if (encoded.length < payload.length) {
+                failedMessage.setEncodedPayload(encoded, codec);
+                return;
+            }
+        }
+        failedMessage.setPayloadBytes(payload);
+    }
+
+    private static byte[] toBytes(String payload) {
+        return payload != null ? payload.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private List<FailedMessage> reserve(List<FailedMessage> messages) {
+        if (nearTermRetryTimer == null) {
+            return List.of();
+        }
+        List<FailedMessage> reserved = new ArrayList<>();
+        for (FailedMessage message : messages) {
+            if (message.getStatus() == MessageStatus.FAILED && nearTermRetryTimer.reserve(message)) {
+                reserved.add(message);
+            }
+        }
+        return reserved;
+    }
+
+    private void persist(FailedMessage failedMessage) {
         try {
-            FailedMessage failedMessage = new FailedMessage();
-            failedMessage.setPayload(payload);
+            boolean heldInWheel = nearTermRetryTimer != null
+                    && failedMessage.getStatus() == MessageStatus.FAILED
+                    && nearTermRetryTimer.reserve(failedMessage);
+            if (writeBehindBuffer != null) {
+                // The buffer hands reserved messages to the wheel once they are inserted.
+                writeBehindBuffer.enqueue(failedMessage);
+                return;
+            }
             repository.save(failedMessage);
+            if (heldInWheel) {
+                nearTermRetryTimer.schedule(failedMessage);
+            }
             logger.info("Saved failed Kafka message to the database for retry.");
         } catch (Exception e) {
             logger.error("Failed to save Kafka message to the retry database.", e);
         }
     }
+
+    /**
+     * A failed message whose handler and retryability have already been decided.
+     *
+     * @param payload The content of the failed Kafka message, as received. Not copied.
+     * @param contentType The MIME type of the payload, or null if unknown.
+     * @param handlerQualifier The name of the handler bean responsible for the message.
+     * @param context Whether the message failed while being consumed or produced.
+     * @param retryable false to record the message as a permanent failure.
+     * @param topic The topic the message was consumed from or produced to, or null if unknown.
+     * @param key The record key, or null.
+     */
+    public record CapturedFailure(byte[] payload, String contentType, String handlerQualifier,
+                                  RetryQualifierResolver.FailureContext context, boolean retryable,
+                                  String topic, byte[] key) {
+
+        /**
+         * A failure whose topic is unknown. It is always stored in the table.
+         */
+        public CapturedFailure(byte[] payload, String contentType, String handlerQualifier,
+                               RetryQualifierResolver.FailureContext context, boolean retryable) {
+            this(payload, contentType, handlerQualifier, context, retryable, null, null);
+        }
+
+        /**
+         * @return The same failure, classified as not retryable.
+         */
+        public CapturedFailure asPermanent() {
+            return new CapturedFailure(payload, contentType, handlerQualifier, context, false, topic, key);
+        }
+
+        /**
+         * A failure with a text payload, stored UTF-8 encoded.
+         */
+        public static CapturedFailure ofText(String payload, String handlerQualifier,
+                                             RetryQualifierResolver.FailureContext context, boolean retryable) {
+            return new CapturedFailure(toBytes(payload), TEXT_CONTENT_TYPE, handlerQualifier, context, retryable);
+        }
+    }
 }
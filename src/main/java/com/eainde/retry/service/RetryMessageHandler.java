@@ -13,8 +13,10 @@ public interface RetryMessageHandler {
      * Processes the payload of a failed message.
      * The implementation should contain the original consumer logic.
      * If this method throws an exception, the retry is considered a failure.
+     * Binary payloads (Avro, Protobuf) are read through {@link FailedMessage#getPayloadBuffer()},
+     * text payloads through {@link FailedMessage#getPayload()}.
      *
-     * @param payload The raw string payload of the message.
+     * @param payload The failed message, with its payload and content type.
      * @throws Exception if processing fails.
      */
     void handle(FailedMessage payload) throws Exception;
@@ -0,0 +1,47 @@
+package com.eainde.retry.topic;
+
+/**
+ * The headers the retry-topic backend adds to records in delay and dead-letter topics.
+ * Values are UTF-8 strings.
+ */
+public final class RetryTopicHeaders {
+
+    /**
+     * The topic the message originally failed on.
+     */
+    public static final String ORIGINAL_TOPIC = "kafka-retry-original-topic";
+
+    /**
+     * The number of the retry this record is waiting for, starting at 1. On a dead-letter record,
+     * the number of retries that were made plus one.
+     */
+    public static final String ATTEMPT = "kafka-retry-attempt";
+
+    /**
+     * When the record becomes due, in epoch milliseconds.
+     */
+    public static final String DUE_AT = "kafka-retry-due-at";
+
+    /**
+     * The name of the handler bean responsible for the message.
+     */
+    public static final String HANDLER = "kafka-retry-handler";
+
+    /**
+     * CONSUMER or PRODUCER.
+     */
+    public static final String CONTEXT = "kafka-retry-context";
+
+    /**
+     * The MIME type of the payload.
+     */
+    public static final String CONTENT_TYPE = "contentType";
+
+    /**
+     * The message of the last exception, if the record was forwarded after a failed retry.
+     */
+    public static final String ERROR = "kafka-retry-error";
+
+    private RetryTopicHeaders() {
+    }
+}
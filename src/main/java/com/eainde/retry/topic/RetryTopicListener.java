@@ -0,0 +1,412 @@
+package com.eainde.retry.topic;
+
+import com.eainde.retry.ExceptionRetryabilityChecker;
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.service.RetryMessageHandler;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.InvalidOffsetException;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthenticationException;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.FencedInstanceIdException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the delay topics and retries each record once it is due.
+ *
+ * Every tier has a single delay, so within a partition records become due in offset order. When
+ * the record at the head of a partition is not due yet, the consumer seeks back to it and pauses
+ * only that partition until its due time; the other partitions keep flowing. Due records are
+ * handed to their {@link RetryMessageHandler}. A record that fails again is classified by the
+ * {@link ExceptionRetryabilityChecker} and published to the next tier or the dead-letter topic,
+ * and its offset is committed only after that publish is acknowledged.
+ *
+ * Each of the {@code concurrency} consumers runs on its own thread and owns its partitions, so
+ * throughput grows with the partition count of the delay topics. A worker only exits on
+ * {@link #stop()}: when a poll fails it rewinds its partitions to their committed offsets and
+ * polls again, and when its consumer can no longer be used it closes it and starts a new one.
+ */
+public class RetryTopicListener implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryTopicListener.class);
+
+    /**
+     * How long a partition is paused when a failed record could not be published to its next topic.
+     */
+    private static final long PUBLISH_RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * How long a worker waits after a failed poll, or before it replaces a failed consumer.
+     */
+    private static final long FAILURE_BACKOFF_MILLIS = 1000;
+
+    private final Map<String, Object> consumerProperties;
+    private final Map<String, RetryMessageHandler> handlers;
+    private final ExceptionRetryabilityChecker retryabilityChecker;
+    private final RetryTopicPublisher publisher;
+    private final RetryTopicNames names;
+    private final KafkaRetryProperties.RetryTopics settings;
+    private final List<Worker> workers = new ArrayList<>();
+
+    private volatile boolean running;
+
+    /**
+     * @param consumerProperties The Kafka consumer configuration, without group or deserializers.
+     * @param handlers The RetryMessageHandler beans by bean name.
+     * @param retryabilityChecker Classifies the exceptions of failed retries.
+     * @param publisher Publishes failed retries to their next topic.
+     * @param properties The configured retry properties.
+     */
+    public RetryTopicListener(Map<String, Object> consumerProperties, Map<String, RetryMessageHandler> handlers,
+                              ExceptionRetryabilityChecker retryabilityChecker, RetryTopicPublisher publisher,
+                              KafkaRetryProperties properties) {
+        this.settings = properties.getRetryTopics();
+        this.consumerProperties = new HashMap<>(consumerProperties);
+        this.consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG, settings.getGroupId());
+        this.consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        // Records published before the group first joined must not be skipped.
+        this.consumerProperties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        this.consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, Math.max(1, settings.getMaxPollRecords()));
+        this.consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        this.consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        this.handlers = handlers;
+        this.retryabilityChecker = retryabilityChecker;
+        this.publisher = publisher;
+        this.names = new RetryTopicNames(settings);
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (int i = 0; i < Math.max(1, settings.getConcurrency()); i++) {
+            Worker worker = new Worker(newConsumer());
+            Thread thread = new Thread(worker, "kafka-retry-topics-" + (i + 1));
+            thread.setDaemon(true);
+            worker.thread = thread;
+            workers.add(worker);
+            thread.start();
+        }
+        logger.info("Started {} consumers for the retry topics matching {}.", workers.size(), names.subscription());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        for (Worker worker : workers) {
+            Consumer<byte[], byte[]> consumer = worker.consumer;
+            if (consumer != null) {
+                consumer.wakeup();
+            }
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(settings.getSendTimeout().plus(settings.getPollTimeout()).toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.clear();
+        logger.info("Stopped the retry topic consumers.");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private Consumer<byte[], byte[]> newConsumer() {
+        return new KafkaConsumer<>(consumerProperties);
+    }
+
+    /**
+     * @return true for errors after which the consumer cannot be polled again and must be replaced.
+     */
+    private static boolean isFatal(RuntimeException e) {
+        return e instanceof AuthenticationException || e instanceof AuthorizationException
+                || e instanceof FencedInstanceIdException || e instanceof InvalidOffsetException
+                || e instanceof InterruptException || e instanceof IllegalStateException;
+    }
+
+    private static void backOff() {
+        try {
+            Thread.sleep(FAILURE_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One consumer and the partitions it has paused, each with the time it becomes due.
+     * Apart from {@link #consumer}, which stop() wakes up, all fields are only used on the
+     * worker's own thread.
+     */
+    private final class Worker implements Runnable, ConsumerRebalanceListener {
+
+        private final Map<TopicPartition, Long> resumeAt = new HashMap<>();
+        // Replaced after a fatal error; null while a new one is being created.
+        private volatile Consumer<byte[], byte[]> consumer;
+        private Thread thread;
+
+        private Worker(Consumer<byte[], byte[]> consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    if (consumer == null) {
+                        consumer = newConsumer();
+                    }
+                    consumer.subscribe(names.subscription(), this);
+                    pollUntilStopped();
+                } catch (WakeupException e) {
+                    // Raised by stop(); uncommitted records are retried by the next owner of the partition.
+                } catch (RuntimeException e) {
+                    logger.error("Retry topic consumer failed. Replacing it with a new one.", e);
+                } finally {
+                    closeConsumer();
+                }
+                if (running) {
+                    backOff();
+                }
+            }
+        }
+
+        /**
+         * Polls and retries until stop() is called. A poll that fails is logged and the partitions
+         * are rewound, so no record is skipped; errors that leave the consumer unusable are thrown.
+         */
+        private void pollUntilStopped() {
+            while (running) {
+                try {
+                    resumeDuePartitions();
+                    ConsumerRecords<byte[], byte[]> records = consumer.poll(nextPollTimeout());
+                    for (TopicPartition partition : records.partitions()) {
+                        if (!running) {
+                            break;
+                        }
+                        processPartition(partition, records.records(partition));
+                    }
+                } catch (WakeupException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    if (isFatal(e)) {
+                        throw e;
+                    }
+                    logger.error("Retry topic poll failed. Rewinding to the committed offsets.", e);
+                    backOff();
+                    rewindToCommitted();
+                }
+            }
+        }
+
+        /**
+         * Moves every assigned partition back to its committed offset. Records retried since the
+         * last commit are retried again, rather than skipped.
+         */
+        private void rewindToCommitted() {
+            Set<TopicPartition> assigned = consumer.assignment();
+            Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(assigned);
+            for (TopicPartition partition : assigned) {
+                OffsetAndMetadata offset = committed.get(partition);
+                if (offset != null) {
+                    consumer.seek(partition, offset);
+                } else {
+                    consumer.seekToBeginning(Set.of(partition));
+                }
+            }
+        }
+
+        private void closeConsumer() {
+            Consumer<byte[], byte[]> closing = consumer;
+            consumer = null;
+            resumeAt.clear();
+            if (closing == null) {
+                return;
+            }
+            try {
+                closing.close();
+            } catch (RuntimeException e) {
+                logger.warn("Could not close a retry topic consumer.", e);
+            }
+        }
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            resumeAt.keySet().removeAll(partitions);
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            // New partitions start unpaused from their committed offset; due times are checked per record.
+        }
+
+        /**
+         * Retries the due records of a partition in order, stopping at the first one that is not due.
+         */
+        private void processPartition(TopicPartition partition, List<ConsumerRecord<byte[], byte[]>> records) {
+            Long nextOffset = null;
+            for (ConsumerRecord<byte[], byte[]> record : records) {
+                long dueAt = dueAtOf(record);
+                if (dueAt > System.currentTimeMillis()) {
+                    pauseAt(partition, record.offset(), dueAt);
+                    break;
+                }
+                if (!retry(record)) {
+                    pauseAt(partition, record.offset(), System.currentTimeMillis() + PUBLISH_RETRY_DELAY_MILLIS);
+                    break;
+                }
+                nextOffset = record.offset() + 1;
+            }
+            if (nextOffset != null) {
+                consumer.commitSync(Map.of(partition, new OffsetAndMetadata(nextOffset)));
+            }
+        }
+
+        /**
+         * Runs the handler of a due record and, if it fails, moves the record on.
+         *
+         * @return false if the record could not be moved on and must be retried in place.
+         */
+        private boolean retry(ConsumerRecord<byte[], byte[]> record) {
+            String originalTopic = header(record, RetryTopicHeaders.ORIGINAL_TOPIC);
+            String qualifier = header(record, RetryTopicHeaders.HANDLER);
+            RetryQualifierResolver.FailureContext context = contextOf(record);
+            String contentType = header(record, RetryTopicHeaders.CONTENT_TYPE);
+            int attempt = attemptOf(record);
+            try {
+                RetryMessageHandler handler = qualifier != null ? handlers.get(qualifier) : null;
+                if (handler == null) {
+                    throw new IllegalStateException("No RetryMessageHandler bean named '" + qualifier + "'");
+                }
+                handler.handle(toMessage(record, qualifier, context, contentType, attempt));
+                logger.info("Retry {} of a message from topic '{}' succeeded.", attempt, originalTopic);
+                return true;
+            } catch (Exception e) {
+                logger.warn("Retry {} of a message from topic '{}' failed. Error: {}", attempt, originalTopic, e.getMessage());
+                boolean retryable = retryabilityChecker.isRetryable(e, qualifier, context);
+                try {
+                    publisher.publish(originalTopic != null ? originalTopic : record.topic(), record.key(), record.value(),
+                            contentType, qualifier, context, attempt + 1, retryable, e.getMessage());
+                    return true;
+                } catch (Exception publishError) {
+                    logger.error("Could not move a message from '{}' to its next topic. Retrying it in place.",
+                            record.topic(), publishError);
+                    return false;
+                }
+            }
+        }
+
+        private void pauseAt(TopicPartition partition, long offset, long dueAt) {
+            consumer.seek(partition, offset);
+            consumer.pause(Set.of(partition));
+            resumeAt.put(partition, dueAt);
+        }
+
+        private void resumeDuePartitions() {
+            long now = System.currentTimeMillis();
+            Set<TopicPartition> assigned = consumer.assignment();
+            Iterator<Map.Entry<TopicPartition, Long>> entries = resumeAt.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<TopicPartition, Long> entry = entries.next();
+                if (entry.getValue() <= now) {
+                    if (assigned.contains(entry.getKey())) {
+                        consumer.resume(Set.of(entry.getKey()));
+                    }
+                    entries.remove();
+                }
+            }
+        }
+
+        /**
+         * Polls no longer than until the next paused partition becomes due.
+         */
+        private Duration nextPollTimeout() {
+            long timeout = settings.getPollTimeout().toMillis();
+            long now = System.currentTimeMillis();
+            for (long dueAt : resumeAt.values()) {
+                timeout = Math.min(timeout, Math.max(0, dueAt - now));
+            }
+            return Duration.ofMillis(timeout);
+        }
+    }
+
+    /**
+     * A transient message for the handler; it has no id because it is not stored in the table.
+     */
+    private static FailedMessage toMessage(ConsumerRecord<byte[], byte[]> record, String qualifier,
+                                           RetryQualifierResolver.FailureContext context, String contentType,
+                                           int attempt) {
+        FailedMessage message = new FailedMessage();
+        message.setPayloadBytes(record.value() != null ? record.value() : new byte[0]);
+        message.setContentType(contentType);
+        message.setHandlerQualifier(qualifier);
+        message.setFailureContext(context);
+        message.setRetryCount(attempt - 1);
+        message.setError(header(record, RetryTopicHeaders.ERROR));
+        return message;
+    }
+
+    /**
+     * @return The due time of a record; records without one are due when they were written.
+     */
+    private static long dueAtOf(ConsumerRecord<byte[], byte[]> record) {
+        String dueAt = header(record, RetryTopicHeaders.DUE_AT);
+        try {
+            return dueAt != null ? Long.parseLong(dueAt) : record.timestamp();
+        } catch (NumberFormatException e) {
+            return record.timestamp();
+        }
+    }
+
+    /**
+     * @return The failure context of a record, or null if it has none or an unknown one.
+     */
+    private static RetryQualifierResolver.FailureContext contextOf(ConsumerRecord<byte[], byte[]> record) {
+        String context = header(record, RetryTopicHeaders.CONTEXT);
+        try {
+            return context != null ? RetryQualifierResolver.FailureContext.valueOf(context) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int attemptOf(ConsumerRecord<byte[], byte[]> record) {
+        String attempt = header(record, RetryTopicHeaders.ATTEMPT);
+        try {
+            return attempt != null ? Math.max(1, Integer.parseInt(attempt)) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private static String header(ConsumerRecord<byte[], byte[]> record, String name) {
+        Header header = record.headers().lastHeader(name);
+        return header != null && header.value() != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+}
@@ -0,0 +1,76 @@
+package com.eainde.retry.topic;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Names the delay and dead-letter topics of an original topic, for example {@code orders.retry.5s},
+ * {@code orders.retry.1m} and {@code orders.dlt}.
+ */
+final class RetryTopicNames {
+
+    private final List<Duration> delays;
+    private final List<String> tierSuffixes;
+    private final String dltSuffix;
+    private final Pattern subscription;
+
+    RetryTopicNames(KafkaRetryProperties.RetryTopics settings) {
+        if (settings.getDelays() == null || settings.getDelays().isEmpty()) {
+            throw new IllegalArgumentException("kafka.retry.retry-topics.delays must name at least one delay");
+        }
+        this.delays = List.copyOf(settings.getDelays());
+        this.tierSuffixes = delays.stream().map(delay -> settings.getRetrySuffix() + "." + format(delay)).toList();
+        this.dltSuffix = settings.getDltSuffix();
+        // Any topic ending in one of the tier suffixes, whatever the original topic is.
+        this.subscription = Pattern.compile(".+(" + tierSuffixes.stream().distinct().map(Pattern::quote)
+                .collect(Collectors.joining("|")) + ")");
+    }
+
+    /**
+     * @param attempt The number of the retry, starting at 1.
+     * @return The tier that holds it; retries beyond the last tier stay in the last tier.
+     */
+    int tierOf(int attempt) {
+        return Math.min(Math.max(attempt, 1), delays.size()) - 1;
+    }
+
+    Duration delay(int tier) {
+        return delays.get(tier);
+    }
+
+    String retryTopic(String originalTopic, int tier) {
+        return originalTopic + tierSuffixes.get(tier);
+    }
+
+    String dltTopic(String originalTopic) {
+        return originalTopic + dltSuffix;
+    }
+
+    /**
+     * @return A pattern matching the delay topics of every original topic.
+     */
+    Pattern subscription() {
+        return subscription;
+    }
+
+    /**
+     * Formats a delay in its largest whole unit: 500ms, 5s, 1m, 2h.
+     */
+    static String format(Duration delay) {
+        long millis = delay.toMillis();
+        if (millis > 0 && millis % 3_600_000 == 0) {
+            return millis / 3_600_000 + "h";
+        }
+        if (millis > 0 && millis % 60_000 == 0) {
+            return millis / 60_000 + "m";
+        }
+        if (millis > 0 && millis % 1000 == 0) {
+            return millis / 1000 + "s";
+        }
+        return millis + "ms";
+    }
+}
@@ -0,0 +1,131 @@
+package com.eainde.retry.topic;
+
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.service.KafkaRetryService;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes failed messages to the delay topic of their next retry, or to the dead-letter topic
+ * once they are not retryable or have used up {@code kafka.retry.max-retries} retries.
+ *
+ * Records keep the original key, so the messages of one key stay in order within each tier.
+ * Every send waits for the broker's acknowledgement, so a caller only moves on (for example
+ * commits the offset of the record it came from) once the message is safely in its next topic.
+ */
+public class RetryTopicPublisher implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryTopicPublisher.class);
+
+    private final ProducerFactory<byte[], byte[]> producerFactory;
+    private final KafkaTemplate<byte[], byte[]> kafkaTemplate;
+    private final RetryTopicNames names;
+    private final int maxRetries;
+    private final Duration sendTimeout;
+
+    /**
+     * @param producerFactory A producer factory with byte array serializers. Closed with the publisher.
+     * @param properties The configured retry properties.
+     */
+    public RetryTopicPublisher(ProducerFactory<byte[], byte[]> producerFactory, KafkaRetryProperties properties) {
+        this.producerFactory = producerFactory;
+        this.kafkaTemplate = new KafkaTemplate<>(producerFactory);
+        this.names = new RetryTopicNames(properties.getRetryTopics());
+        this.maxRetries = properties.getMaxRetries();
+        this.sendTimeout = properties.getRetryTopics().getSendTimeout();
+    }
+
+    /**
+     * Publishes a newly captured failure: to the first delay topic if it is retryable, to the
+     * dead-letter topic otherwise.
+     *
+     * @param failure A failure that carries its original topic.
+     * @throws IllegalStateException if the broker did not acknowledge the record in time.
+     */
+    public void publish(KafkaRetryService.CapturedFailure failure) {
+        publish(failure.topic(), failure.key(), failure.payload(), failure.contentType(),
+                failure.handlerQualifier(), failure.context(), 1, failure.retryable(), null);
+    }
+
+    /**
+     * Publishes a message to the topic of the given retry.
+     *
+     * @param originalTopic The topic the message originally failed on.
+     * @param key The original record key, or null.
+     * @param payload The payload as received.
+     * @param contentType The MIME type of the payload, or null.
+     * @param handlerQualifier The name of the handler bean responsible for the message.
+     * @param context Whether the message failed while being consumed or produced.
+     * @param attempt The number of the next retry, starting at 1.
+     * @param retryable false to send the message to the dead-letter topic straight away.
+     * @param error The message of the last exception, or null.
+     * @throws IllegalStateException if the broker did not acknowledge the record in time.
+     */
+    void publish(String originalTopic, byte[] key, byte[] payload, String contentType, String handlerQualifier,
+                 RetryQualifierResolver.FailureContext context, int attempt, boolean retryable, String error) {
+        boolean deadLetter = !retryable || attempt > maxRetries;
+        String topic;
+        Long dueAt = null;
+        if (deadLetter) {
+            topic = names.dltTopic(originalTopic);
+        } else {
+            int tier = names.tierOf(attempt);
+            topic = names.retryTopic(originalTopic, tier);
+            dueAt = System.currentTimeMillis() + names.delay(tier).toMillis();
+        }
+
+        ProducerRecord<byte[], byte[]> record = new ProducerRecord<>(topic, key, payload);
+        Headers headers = record.headers();
+        add(headers, RetryTopicHeaders.ORIGINAL_TOPIC, originalTopic);
+        add(headers, RetryTopicHeaders.ATTEMPT, Integer.toString(attempt));
+        add(headers, RetryTopicHeaders.HANDLER, handlerQualifier);
+        add(headers, RetryTopicHeaders.CONTEXT, context != null ? context.name() : null);
+        add(headers, RetryTopicHeaders.CONTENT_TYPE, contentType);
+        add(headers, RetryTopicHeaders.ERROR, error);
+        if (dueAt != null) {
+            add(headers, RetryTopicHeaders.DUE_AT, Long.toString(dueAt));
+        }
+
+        try {
+            kafkaTemplate.send(record).get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while publishing to " + topic, e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("Could not publish to " + topic, e);
+        }
+        if (deadLetter) {
+            logger.error("Message of topic '{}' for handler '{}' sent to dead-letter topic '{}' after {} retries.",
+                    originalTopic, handlerQualifier, topic, attempt - 1);
+        } else {
+            logger.info("Message of topic '{}' for handler '{}' sent to '{}' for retry {}.",
+                    originalTopic, handlerQualifier, topic, attempt);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (producerFactory instanceof DisposableBean disposable) {
+            disposable.destroy();
+        }
+    }
+
+    private static void add(Headers headers, String name, String value) {
+        if (value != null) {
+            headers.add(new RecordHeader(name, value.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.eainde.retry.scheduler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Java 21 variant of {@code VirtualThreads}, packaged under {@code META-INF/versions/21}.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates an executor that starts a new, named virtual thread for each task.
+     *
+     * @param namePrefix The prefix for the names of the created threads.
+     * @return A thread-per-task executor backed by virtual threads.
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 1).factory());
+    }
+}
@@ -0,0 +1,17 @@
+-- Adds the precomputed next_attempt_at column used by the retry scheduler's due query.
+-- Existing FAILED rows are backfilled with the previous formula:
+--   last_attempt_time + initial_interval * 2^retry_count (5 minutes is the default interval).
+-- Rows that were never attempted become due immediately.
+
+ALTER TABLE failed_messages ADD (next_attempt_at TIMESTAMP);
+
+UPDATE failed_messages
+SET next_attempt_at = CASE
+        WHEN last_attempt_time IS NULL THEN created_at
+        ELSE last_attempt_time + NUMTODSINTERVAL(5 * POWER(2, retry_count), 'MINUTE')
+    END
+WHERE status = 'FAILED';
+
+COMMIT;
+
+CREATE INDEX idx_failed_messages_due ON failed_messages (status, next_attempt_at);
@@ -0,0 +1,7 @@
+-- Adds the owner and lease columns used when kafka.retry.coordination.mode=CLAIM.
+-- Claimed rows are found through the existing (status, next_attempt_at) index.
+
+ALTER TABLE failed_messages ADD (
+    claimed_by       VARCHAR2(255),
+    claim_expires_at TIMESTAMP
+);
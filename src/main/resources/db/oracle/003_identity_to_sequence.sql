@@ -0,0 +1,13 @@
+-- Switches failed_messages.id from IDENTITY to failed_messages_seq (pooled-lo, 50 ids per block).
+-- INCREMENT BY must equal kafka.retry.id-allocation-size.
+-- Run while no application node is writing to the table.
+
+ALTER TABLE failed_messages MODIFY id DROP IDENTITY;
+
+DECLARE
+    next_id NUMBER;
+BEGIN
+    SELECT NVL(MAX(id), 0) + 1 INTO next_id FROM failed_messages;
+    EXECUTE IMMEDIATE 'CREATE SEQUENCE failed_messages_seq START WITH ' || next_id || ' INCREMENT BY 50 CACHE 20';
+END;
+/
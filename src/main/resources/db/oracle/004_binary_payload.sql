@@ -0,0 +1,39 @@
+-- Stores payloads as received (BLOB) instead of as text (CLOB), and records their content type.
+-- Existing text payloads are converted to UTF-8 bytes; the old column is dropped afterwards.
+-- Run while no application node is writing to the table.
+
+ALTER TABLE failed_messages RENAME COLUMN payload TO payload_text;
+
+ALTER TABLE failed_messages ADD (
+    payload      BLOB,
+    content_type VARCHAR2(255)
+);
+
+DECLARE
+    v_blob         BLOB;
+    v_dest_offset  INTEGER;
+    v_src_offset   INTEGER;
+    v_lang_context INTEGER;
+    v_warning      INTEGER;
+BEGIN
+    FOR r IN (SELECT id, payload_text FROM failed_messages FOR UPDATE) LOOP
+        DBMS_LOB.CREATETEMPORARY(v_blob, TRUE);
+        v_dest_offset := 1;
+        v_src_offset := 1;
+        v_lang_context := DBMS_LOB.DEFAULT_LANG_CTX;
+        IF DBMS_LOB.GETLENGTH(r.payload_text) > 0 THEN
+            DBMS_LOB.CONVERTTOBLOB(v_blob, r.payload_text, DBMS_LOB.LOBMAXSIZE, v_dest_offset, v_src_offset,
+                                   NLS_CHARSET_ID('AL32UTF8'), v_lang_context, v_warning);
+        END IF;
+        UPDATE failed_messages
+        SET payload = v_blob, content_type = 'text/plain;charset=UTF-8'
+        WHERE id = r.id;
+        DBMS_LOB.FREETEMPORARY(v_blob);
+    END LOOP;
+    COMMIT;
+END;
+/
+
+ALTER TABLE failed_messages MODIFY (payload NOT NULL);
+
+ALTER TABLE failed_messages DROP COLUMN payload_text;
@@ -0,0 +1,6 @@
+-- Records how each payload is encoded when kafka.retry.compression.codec is set.
+-- Existing rows keep NULL, which means the payload is stored uncompressed.
+
+ALTER TABLE failed_messages ADD (
+    payload_codec VARCHAR2(16)
+);
@@ -0,0 +1,10 @@
+-- Stores the handler that retries each message and whether it failed while being consumed or produced.
+-- Existing rows keep NULL and are retried by the default handler.
+-- The index serves the scheduler's per-handler due query.
+
+ALTER TABLE failed_messages ADD (
+    handler_qualifier VARCHAR2(255),
+    failure_context   VARCHAR2(16)
+);
+
+CREATE INDEX idx_failed_messages_handler_due ON failed_messages (handler_qualifier, status, next_attempt_at);
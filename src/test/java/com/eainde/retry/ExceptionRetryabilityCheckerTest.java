@@ -0,0 +1,100 @@
+package com.eainde.retry;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExceptionRetryabilityCheckerTest {
+
+    private static final String HANDLER = "orderHandler";
+
+    private final KafkaRetryProperties properties = new KafkaRetryProperties();
+
+    private boolean isRetryable(Throwable failure) {
+        return new ExceptionRetryabilityChecker(properties)
+                .isRetryable(failure, HANDLER, RetryQualifierResolver.FailureContext.CONSUMER);
+    }
+
+    private static Throwable wrap(Throwable cause, int times) {
+        Throwable failure = cause;
+        for (int i = 0; i < times; i++) {
+            failure = new IllegalStateException("wrapper " + i, failure);
+        }
+        return failure;
+    }
+
+    @Test
+    void doesNotRetryAFailureWithABlacklistedCause() {
+        properties.setNonRetryableExceptions(List.of(IllegalArgumentException.class.getName()));
+
+        assertFalse(isRetryable(wrap(new IllegalArgumentException("malformed"), 3)));
+        assertTrue(isRetryable(wrap(new IOException("down"), 3)));
+    }
+
+    @Test
+    void retriesAFailureWithAWhitelistedCause() {
+        properties.setRetryableExceptions(List.of(IOException.class.getName()));
+
+        // The whitelist matches subclasses, here a socket timeout wrapped in two listener exceptions.
+        assertTrue(isRetryable(wrap(new SocketTimeoutException("slow"), 2)));
+        assertFalse(isRetryable(wrap(new IllegalArgumentException("malformed"), 2)));
+    }
+
+    @Test
+    void letsABlacklistedCauseWinOverAWhitelistedWrapper() {
+        properties.setRetryableExceptions(List.of(IOException.class.getName()));
+        properties.setNonRetryableExceptions(List.of(IllegalArgumentException.class.getName()));
+
+        assertFalse(isRetryable(new IOException("down", new IllegalArgumentException("malformed"))));
+    }
+
+    @Test
+    void checksNoMoreCausesThanTheMaxCauseDepth() {
+        properties.setNonRetryableExceptions(List.of(IllegalArgumentException.class.getName()));
+        Throwable failure = wrap(new IllegalArgumentException("malformed"), 2);
+
+        properties.setMaxCauseDepth(2);
+        assertTrue(isRetryable(failure));
+
+        properties.setMaxCauseDepth(3);
+        assertFalse(isRetryable(failure));
+    }
+
+    @Test
+    void stopsAtACauseThatIsItsOwnCause() {
+        properties.setRetryableExceptions(List.of(IOException.class.getName()));
+        properties.setMaxCauseDepth(Integer.MAX_VALUE);
+
+        assertFalse(isRetryable(wrap(new SelfCausedException(), 2)));
+    }
+
+    @Test
+    void stopsWalkingACauseChainThatLoops() {
+        properties.setNonRetryableExceptions(List.of(IllegalArgumentException.class.getName()));
+        properties.setMaxCauseDepth(Integer.MAX_VALUE);
+        IllegalStateException first = new IllegalStateException("first");
+        IllegalStateException second = new IllegalStateException("second", first);
+        first.initCause(second);
+
+        // Every exception of the loop is checked once before the walk stops.
+        assertTrue(isRetryable(wrap(first, 3)));
+        assertFalse(isRetryable(new IllegalArgumentException("malformed", wrap(first, 3))));
+    }
+
+    /**
+     * An exception reporting itself as its cause, which {@link Throwable#initCause} does not allow.
+     */
+    private static final class SelfCausedException extends RuntimeException {
+
+        @Override
+        public synchronized Throwable getCause() {
+            return this;
+        }
+    }
+}
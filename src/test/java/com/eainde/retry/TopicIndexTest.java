@@ -0,0 +1,116 @@
+package com.eainde.retry;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TopicIndexTest {
+
+    private static TopicIndex index(int cacheSize, String... qualifiersAndTopics) {
+        Map<String, String> topicsByQualifier = new LinkedHashMap<>();
+        for (int i = 0; i < qualifiersAndTopics.length; i += 2) {
+            topicsByQualifier.put(qualifiersAndTopics[i], qualifiersAndTopics[i + 1]);
+        }
+        return new TopicIndex(topicsByQualifier, cacheSize);
+    }
+
+    @Test
+    void exactTopicWinsOverAnEarlierPattern() {
+        TopicIndex index = index(100, "wildcard", "orders.*", "exact", "orders.created");
+
+        assertEquals(Optional.of("exact"), index.resolve("orders.created"));
+        assertEquals(Optional.of("wildcard"), index.resolve("orders.updated"));
+    }
+
+    @Test
+    void firstDeclaredPatternWinsAmongOverlappingPatterns() {
+        TopicIndex index = index(100, "first", "orders.**", "second", "orders.*.eu");
+
+        assertEquals(Optional.of("first"), index.resolve("orders.created.eu"));
+    }
+
+    @Test
+    void anySegmentsMatchesZeroOrMoreSegments() {
+        TopicIndex index = index(100, "audit", "**.audit");
+
+        assertEquals(Optional.of("audit"), index.resolve("audit"));
+        assertEquals(Optional.of("audit"), index.resolve("billing.audit"));
+        assertEquals(Optional.of("audit"), index.resolve("billing.eu.audit"));
+        assertEquals(Optional.empty(), index.resolve("billing.audit.raw"));
+    }
+
+    @Test
+    void segmentWildcardsAndVariablesMatchWithinOneSegment() {
+        TopicIndex index = index(100,
+                "prefixed", "order-*.events",
+                "single", "payment?.events",
+                "region", "{region:eu|us}.shipments");
+
+        assertEquals(Optional.of("prefixed"), index.resolve("order-v2.events"));
+        assertEquals(Optional.of("single"), index.resolve("payments.events"));
+        assertEquals(Optional.empty(), index.resolve("payments2.events"));
+        assertEquals(Optional.of("region"), index.resolve("eu.shipments"));
+        assertEquals(Optional.empty(), index.resolve("apac.shipments"));
+    }
+
+    @Test
+    void unknownAndNullTopicsResolveToEmpty() {
+        TopicIndex index = index(100, "orders", "orders.*");
+
+        assertEquals(Optional.empty(), index.resolve("payments.created"));
+        assertEquals(Optional.empty(), index.resolve(null));
+    }
+
+    @Test
+    void keepsResolvingCorrectlyOnceTheCacheIsFull() {
+        TopicIndex index = index(2, "orders", "orders.*", "payments", "payments.*");
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(Optional.of("orders"), index.resolve("orders.topic-" + i));
+                assertEquals(Optional.of("payments"), index.resolve("payments.topic-" + i));
+                assertEquals(Optional.empty(), index.resolve("other.topic-" + i));
+            }
+        }
+    }
+
+    @Test
+    void resolvesCorrectlyFromManyThreadsWhileEvicting() throws Exception {
+        TopicIndex index = index(16, "orders", "orders.*", "payments", "payments.*");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int worker = 0; worker < 8; worker++) {
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; i < 5_000; i++) {
+                        // A few hot topics and a stream of cold ones that keep the cache evicting.
+                        int topic = i % 4 == 0 ? i : i % 8;
+                        assertEquals(Optional.of("orders"), index.resolve("orders.topic-" + topic));
+                        assertEquals(Optional.of("payments"), index.resolve("payments.topic-" + topic));
+                        assertEquals(Optional.empty(), index.resolve("other.topic-" + topic));
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectsAnUnclosedVariable() {
+        assertThrows(IllegalArgumentException.class, () -> index(100, "broken", "{region.orders"));
+    }
+}
@@ -0,0 +1,24 @@
+package com.eainde.retry.backoff;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CappedBackoffPolicyTest {
+
+    private final CappedBackoffPolicy policy =
+            new CappedBackoffPolicy(new ExponentialBackoffPolicy(Duration.ofMinutes(5), 2), Duration.ofHours(1));
+
+    @Test
+    void passesDelaysBelowTheCapThrough() {
+        assertEquals(Duration.ofMinutes(40), policy.nextDelay(3, null));
+    }
+
+    @Test
+    void limitsLongerDelaysToTheCap() {
+        assertEquals(Duration.ofHours(1), policy.nextDelay(4, null));
+        assertEquals(Duration.ofHours(1), policy.nextDelay(1_000, null));
+    }
+}
@@ -0,0 +1,54 @@
+package com.eainde.retry.backoff;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DecorrelatedJitterBackoffPolicyTest {
+
+    private static final Duration BASE = Duration.ofSeconds(1);
+    private static final Duration CAP = Duration.ofMinutes(1);
+
+    private final DecorrelatedJitterBackoffPolicy policy = new DecorrelatedJitterBackoffPolicy(BASE, CAP);
+
+    @Test
+    void staysBetweenTheBaseAndThreeTimesThePreviousDelay() {
+        Duration previous = Duration.ofSeconds(4);
+
+        for (int i = 0; i < 10_000; i++) {
+            Duration delay = policy.nextDelay(2, previous);
+            assertTrue(delay.compareTo(BASE) >= 0 && delay.compareTo(Duration.ofSeconds(12)) <= 0,
+                    "out of bounds: " + delay);
+        }
+    }
+
+    @Test
+    void neverExceedsTheCapAlongARandomPath() {
+        Duration previous = null;
+
+        for (int retry = 1; retry <= 1_000; retry++) {
+            Duration delay = policy.nextDelay(retry, previous);
+            assertTrue(delay.compareTo(BASE) >= 0 && delay.compareTo(CAP) <= 0, "out of bounds: " + delay);
+            previous = delay;
+        }
+    }
+
+    @Test
+    void startsFromTheBaseWithoutAPreviousDelay() {
+        for (int i = 0; i < 1_000; i++) {
+            Duration delay = policy.nextDelay(1, null);
+            assertTrue(delay.compareTo(BASE) >= 0 && delay.compareTo(Duration.ofSeconds(3)) <= 0,
+                    "out of bounds: " + delay);
+        }
+    }
+
+    @Test
+    void raisesACapBelowTheBaseToTheBase() {
+        DecorrelatedJitterBackoffPolicy inverted = new DecorrelatedJitterBackoffPolicy(BASE, Duration.ofMillis(10));
+
+        assertEquals(BASE, inverted.nextDelay(5, Duration.ofSeconds(30)));
+    }
+}
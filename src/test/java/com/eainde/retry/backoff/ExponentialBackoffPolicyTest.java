@@ -0,0 +1,50 @@
+package com.eainde.retry.backoff;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExponentialBackoffPolicyTest {
+
+    @Test
+    void multipliesTheInitialIntervalPerRetry() {
+        ExponentialBackoffPolicy policy = new ExponentialBackoffPolicy(Duration.ofMinutes(5), 2);
+
+        assertEquals(Duration.ofMinutes(10), policy.nextDelay(1, null));
+        assertEquals(Duration.ofMinutes(20), policy.nextDelay(2, Duration.ofMinutes(10)));
+        assertEquals(Duration.ofMinutes(40), policy.nextDelay(3, Duration.ofMinutes(20)));
+    }
+
+    @Test
+    void supportsFractionalMultipliers() {
+        ExponentialBackoffPolicy policy = new ExponentialBackoffPolicy(Duration.ofSeconds(10), 1.5);
+
+        assertEquals(Duration.ofSeconds(15), policy.nextDelay(1, null));
+        assertEquals(Duration.ofMillis(22_500), policy.nextDelay(2, null));
+    }
+
+    @Test
+    void treatsAMultiplierBelowOneAsFixed() {
+        ExponentialBackoffPolicy policy = new ExponentialBackoffPolicy(Duration.ofSeconds(10), 0.5);
+
+        assertEquals(Duration.ofSeconds(10), policy.nextDelay(1, null));
+        assertEquals(Duration.ofSeconds(10), policy.nextDelay(20, null));
+    }
+
+    @Test
+    void clampsARunawayExponentInsteadOfOverflowing() {
+        ExponentialBackoffPolicy policy = new ExponentialBackoffPolicy(Duration.ofMinutes(5), 2);
+
+        assertEquals(Delays.MAX_DELAY, policy.nextDelay(64, null));
+        assertEquals(Delays.MAX_DELAY, policy.nextDelay(Integer.MAX_VALUE, null));
+    }
+
+    @Test
+    void neverReturnsANegativeDelay() {
+        ExponentialBackoffPolicy policy = new ExponentialBackoffPolicy(Duration.ofSeconds(-5), 2);
+
+        assertEquals(Duration.ZERO, policy.nextDelay(3, null));
+    }
+}
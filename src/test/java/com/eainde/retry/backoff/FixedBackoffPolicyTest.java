@@ -0,0 +1,23 @@
+package com.eainde.retry.backoff;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FixedBackoffPolicyTest {
+
+    @Test
+    void waitsTheSameIntervalBeforeEveryRetry() {
+        FixedBackoffPolicy policy = new FixedBackoffPolicy(Duration.ofSeconds(30));
+
+        assertEquals(Duration.ofSeconds(30), policy.nextDelay(1, null));
+        assertEquals(Duration.ofSeconds(30), policy.nextDelay(50, Duration.ofSeconds(30)));
+    }
+
+    @Test
+    void treatsANegativeIntervalAsZero() {
+        assertEquals(Duration.ZERO, new FixedBackoffPolicy(Duration.ofSeconds(-1)).nextDelay(1, null));
+    }
+}
@@ -0,0 +1,44 @@
+package com.eainde.retry.backoff;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FullJitterBackoffPolicyTest {
+
+    @Test
+    void staysBetweenZeroAndTheCeiling() {
+        FullJitterBackoffPolicy policy = new FullJitterBackoffPolicy((retryCount, previous) -> Duration.ofSeconds(10));
+
+        for (int i = 0; i < 10_000; i++) {
+            Duration delay = policy.nextDelay(1, null);
+            assertTrue(!delay.isNegative() && delay.compareTo(Duration.ofSeconds(10)) <= 0, "out of bounds: " + delay);
+        }
+    }
+
+    @Test
+    void spreadsTheDelaysOverTheWholeInterval() {
+        FullJitterBackoffPolicy policy = new FullJitterBackoffPolicy((retryCount, previous) -> Duration.ofSeconds(10));
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+
+        for (int i = 0; i < 10_000; i++) {
+            long millis = policy.nextDelay(1, null).toMillis();
+            shortest = Math.min(shortest, millis);
+            longest = Math.max(longest, millis);
+        }
+
+        assertTrue(shortest < 1_000, "shortest delay " + shortest);
+        assertTrue(longest > 9_000, "longest delay " + longest);
+    }
+
+    @Test
+    void waitsNothingWhenTheCeilingIsZero() {
+        FullJitterBackoffPolicy policy = new FullJitterBackoffPolicy((retryCount, previous) -> Duration.ZERO);
+
+        assertEquals(Duration.ZERO, policy.nextDelay(1, null));
+    }
+}
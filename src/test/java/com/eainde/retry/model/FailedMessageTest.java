@@ -0,0 +1,92 @@
+package com.eainde.retry.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FailedMessageTest {
+
+    private static final String PAYLOAD = "{\"orderId\":12345,\"status\":\"CREATED\"}".repeat(50);
+
+    private static byte[] deflated(String payload) {
+        return PayloadCodec.DEFLATE.encode(payload.getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Test
+    void decodesACompressedPayloadOnFirstAccess() {
+        byte[] encoded = deflated(PAYLOAD);
+        Arrays.fill(encoded, Integer.BYTES, encoded.length, (byte) 0xFF);
+        FailedMessage message = new FailedMessage();
+
+        // Storing corrupt bytes succeeds: nothing is decoded until the payload is read.
+        message.setEncodedPayload(encoded, PayloadCodec.DEFLATE);
+
+        assertTrue(message.isPayloadLoaded());
+        assertThrows(IllegalStateException.class, message::getPayload);
+    }
+
+    @Test
+    void decodesACompressedPayloadOnlyOnce() {
+        byte[] encoded = deflated(PAYLOAD);
+        FailedMessage message = new FailedMessage();
+        message.setEncodedPayload(encoded, PayloadCodec.DEFLATE);
+
+        assertEquals(PAYLOAD, message.getPayload());
+        // Later reads use the decoded copy, so corrupting the stored bytes goes unnoticed.
+        Arrays.fill(encoded, Integer.BYTES, encoded.length, (byte) 0xFF);
+        assertEquals(PAYLOAD, message.getPayload());
+        assertEquals(PAYLOAD, StandardCharsets.UTF_8.decode(message.getPayloadBuffer()).toString());
+    }
+
+    @Test
+    void decodesAgainOnceANewPayloadIsStored() {
+        FailedMessage message = new FailedMessage();
+        message.setEncodedPayload(deflated(PAYLOAD), PayloadCodec.DEFLATE);
+        assertEquals(PAYLOAD, message.getPayload());
+
+        message.setEncodedPayload(deflated("replaced"), PayloadCodec.DEFLATE);
+
+        assertEquals("replaced", message.getPayload());
+    }
+
+    @Test
+    void exposesAnUncompressedPayloadWithoutCopyingIt() {
+        byte[] payload = "order".getBytes(StandardCharsets.UTF_8);
+        FailedMessage message = new FailedMessage();
+        message.setPayloadBytes(payload);
+
+        ByteBuffer buffer = message.getPayloadBuffer();
+        payload[0] = 'O';
+
+        assertTrue(buffer.isReadOnly());
+        assertEquals("Order", StandardCharsets.UTF_8.decode(buffer).toString());
+        assertEquals(PayloadCodec.NONE, message.getPayloadCodec());
+    }
+
+    @Test
+    void treatsRowsWrittenBeforeCompressionAsUncompressed() {
+        FailedMessage message = new FailedMessage();
+        message.setEncodedPayload("legacy".getBytes(StandardCharsets.UTF_8), null);
+
+        assertEquals(PayloadCodec.NONE, message.getPayloadCodec());
+        assertEquals("legacy", message.getPayload());
+    }
+
+    @Test
+    void hasNoPayloadUntilOneIsStored() {
+        FailedMessage message = new FailedMessage();
+
+        assertFalse(message.isPayloadLoaded());
+        assertNull(message.getPayload());
+        assertNull(message.getPayloadBuffer());
+    }
+}
@@ -0,0 +1,120 @@
+package com.eainde.retry.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadCodecTest {
+
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] text(int length) {
+        byte[] line = "{\"orderId\":12345,\"status\":\"CREATED\",\"items\":[]}\n".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = line[i % line.length];
+        }
+        return bytes;
+    }
+
+    private static byte[] roundTrip(byte[] payload) {
+        return PayloadCodec.DEFLATE.decode(PayloadCodec.DEFLATE.encode(payload, LEVEL));
+    }
+
+    @Test
+    void noneStoresThePayloadAsIs() {
+        byte[] payload = text(100);
+
+        assertSame(payload, PayloadCodec.NONE.encode(payload, LEVEL));
+        assertSame(payload, PayloadCodec.NONE.decode(payload));
+    }
+
+    @Test
+    void roundTripsAnEmptyPayload() {
+        byte[] encoded = PayloadCodec.DEFLATE.encode(new byte[0], LEVEL);
+
+        assertEquals(0, ByteBuffer.wrap(encoded).getInt());
+        assertArrayEquals(new byte[0], PayloadCodec.DEFLATE.decode(encoded));
+    }
+
+    @Test
+    void compressesARepetitivePayload() {
+        byte[] payload = text(64 * 1024);
+
+        byte[] encoded = PayloadCodec.DEFLATE.encode(payload, LEVEL);
+
+        assertTrue(encoded.length < payload.length / 10, encoded.length + " bytes");
+        assertArrayEquals(payload, PayloadCodec.DEFLATE.decode(encoded));
+    }
+
+    @Test
+    void roundTripsAnIncompressiblePayload() {
+        byte[] payload = random(64 * 1024);
+
+        byte[] encoded = PayloadCodec.DEFLATE.encode(payload, LEVEL);
+
+        assertTrue(encoded.length > payload.length, encoded.length + " bytes");
+        assertArrayEquals(payload, PayloadCodec.DEFLATE.decode(encoded));
+    }
+
+    @Test
+    void roundTripsAMultiMegabytePayload() {
+        assertArrayEquals(text(8 * 1024 * 1024), roundTrip(text(8 * 1024 * 1024)));
+        assertArrayEquals(random(3 * 1024 * 1024), roundTrip(random(3 * 1024 * 1024)));
+    }
+
+    @Test
+    void growsTheOutputBufferUntilTheWholePayloadIsDeflated() {
+        byte[] payload = random(100_000);
+
+        // A 16-byte first buffer has to double a dozen times.
+        byte[] encoded = PayloadCodec.deflate(payload, LEVEL, 16);
+
+        assertArrayEquals(PayloadCodec.DEFLATE.encode(payload, LEVEL), encoded);
+        assertArrayEquals(payload, PayloadCodec.DEFLATE.decode(encoded));
+    }
+
+    @Test
+    void rejectsATruncatedPayload() {
+        byte[] encoded = PayloadCodec.DEFLATE.encode(random(10_000), LEVEL);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> PayloadCodec.DEFLATE.decode(Arrays.copyOf(encoded, encoded.length / 2)));
+        assertTrue(e.getMessage().startsWith("Truncated DEFLATE payload: expected 10000 bytes"), e.getMessage());
+        assertThrows(IllegalStateException.class, () -> PayloadCodec.DEFLATE.decode(new byte[]{0, 0}));
+    }
+
+    @Test
+    void rejectsAPayloadLongerThanItsPrefix() {
+        byte[] encoded = PayloadCodec.DEFLATE.encode(text(10_000), LEVEL);
+        ByteBuffer.wrap(encoded).putInt(9_999);
+
+        assertThrows(IllegalStateException.class, () -> PayloadCodec.DEFLATE.decode(encoded));
+    }
+
+    @Test
+    void rejectsACorruptPayload() {
+        byte[] encoded = PayloadCodec.DEFLATE.encode(text(10_000), LEVEL);
+        // 0xFF starts a block of the reserved type 3.
+        Arrays.fill(encoded, Integer.BYTES, encoded.length, (byte) 0xFF);
+
+        assertThrows(IllegalStateException.class, () -> PayloadCodec.DEFLATE.decode(encoded));
+        assertThrows(IllegalStateException.class, () -> PayloadCodec.DEFLATE.decode(new byte[]{-1, -1, -1, -1, 0}));
+    }
+}
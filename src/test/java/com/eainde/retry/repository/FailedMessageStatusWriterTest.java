@@ -0,0 +1,170 @@
+package com.eainde.retry.repository;
+
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.model.MessageStatus;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FailedMessageStatusWriterTest {
+
+    private static final long ID = 42L;
+
+    private final FailedMessagesTable table = new FailedMessagesTable();
+    private final FailedMessageStatusWriter writer = new FailedMessageStatusWriter(table, 10);
+
+    /**
+     * Reads the row as a node does when it claims or polls it, with the scheduler's start of an attempt.
+     */
+    private FailedMessage read(String nodeId) {
+        FailedMessage message = new FailedMessage();
+        message.setId(ID);
+        message.setStatus(table.status);
+        message.setRetryCount(table.retryCount);
+        message.setClaimedBy(nodeId);
+        table.claimedBy = nodeId;
+        message.setAttemptRetryCount(message.getRetryCount());
+        return message;
+    }
+
+    private static void fail(FailedMessage message, String error) {
+        message.setRetryCount(message.getRetryCount() + 1);
+        message.setLastAttemptTime(LocalDateTime.now());
+        message.setNextAttemptAt(message.getLastAttemptTime().plusSeconds(30));
+        message.setError(error);
+        message.setClaimedBy(null);
+    }
+
+    @Test
+    void dropsTheFailureOfANodeWhoseRowWasRetriedAndReleasedByAnother() {
+        FailedMessage staleAttempt = read("node-a");
+        // node-a's lease expires mid-attempt; node-b claims the row, fails it and releases its claim.
+        FailedMessage attempt = read("node-b");
+        fail(attempt, "node-b failed");
+        writer.writeOutcomes(List.of(attempt), "node-b");
+
+        fail(staleAttempt, "node-a failed");
+        writer.writeOutcomes(List.of(staleAttempt), "node-a");
+
+        assertEquals(1, table.retryCount);
+        assertEquals("node-b failed", table.error);
+        assertNull(table.claimedBy);
+    }
+
+    @Test
+    void dropsTheSuccessOfANodeWhoseRowWasRetriedAndReleasedByAnother() {
+        FailedMessage staleAttempt = read("node-a");
+        FailedMessage attempt = read("node-b");
+        fail(attempt, "node-b failed");
+        writer.writeOutcomes(List.of(attempt), "node-b");
+
+        staleAttempt.setStatus(MessageStatus.PROCESSED);
+        writer.writeOutcomes(List.of(staleAttempt), "node-a");
+
+        assertEquals(MessageStatus.FAILED, table.status);
+        assertEquals(1, table.retryCount);
+    }
+
+    @Test
+    void dropsAStaleOutcomeOfUnclaimedRows() {
+        // With ShedLock coordination rows are never claimed, so only the retry count tells the attempts apart.
+        FailedMessage staleAttempt = read(null);
+        FailedMessage attempt = read(null);
+        fail(attempt, "second poll failed");
+        writer.writeOutcomes(List.of(attempt), "node-b");
+
+        fail(staleAttempt, "first poll failed");
+        writer.writeOutcomes(List.of(staleAttempt), "node-a");
+
+        assertEquals(1, table.retryCount);
+        assertEquals("second poll failed", table.error);
+    }
+
+    @Test
+    void writesTheOutcomeOfTheNodeHoldingTheClaim() {
+        FailedMessage attempt = read("node-a");
+        fail(attempt, "still down");
+        writer.writeOutcomes(List.of(attempt), "node-a");
+
+        FailedMessage retry = read("node-a");
+        retry.setStatus(MessageStatus.PROCESSED);
+        writer.writeOutcomes(List.of(retry), "node-a");
+
+        assertEquals(MessageStatus.PROCESSED, table.status);
+        assertEquals(1, table.retryCount);
+        assertNull(table.claimedBy);
+    }
+
+    /**
+     * A single failed_messages row that applies the writer's UPDATE statements as the database would.
+     */
+    private static final class FailedMessagesTable extends JdbcTemplate {
+
+        private MessageStatus status = MessageStatus.FAILED;
+        private int retryCount;
+        private String error;
+        private String claimedBy;
+
+        @Override
+        public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize,
+                                       ParameterizedPreparedStatementSetter<T> pss) {
+            int[] updateCounts = new int[batchArgs.size()];
+            int index = 0;
+            for (T argument : batchArgs) {
+                Map<Integer, Object> parameters = new TreeMap<>();
+                try {
+                    pss.setValues(recording(parameters), argument);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                updateCounts[index++] = update(sql, new ArrayList<>(parameters.values()));
+            }
+            return new int[][]{updateCounts};
+        }
+
+        private int update(String sql, List<Object> parameters) {
+            boolean recordsFailure = sql.contains("retry_count = ?,");
+            int where = recordsFailure ? 8 : 2;
+            boolean checksRetryCount = sql.contains("AND retry_count = ?");
+            long id = (Long) parameters.get(where);
+            String nodeId = (String) parameters.get(where + (checksRetryCount ? 2 : 1));
+            if (id != ID || status != MessageStatus.FAILED
+                    || (checksRetryCount && retryCount != (Integer) parameters.get(where + 1))
+                    || (claimedBy != null && !claimedBy.equals(nodeId))) {
+                return 0;
+            }
+            status = MessageStatus.valueOf((String) parameters.get(0));
+            if (recordsFailure) {
+                retryCount = (Integer) parameters.get(1);
+                error = (String) parameters.get(4);
+                claimedBy = (String) parameters.get(5);
+            } else {
+                claimedBy = null;
+            }
+            return 1;
+        }
+
+        private static PreparedStatement recording(Map<Integer, Object> parameters) {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().startsWith("set") && args != null && args.length == 2) {
+                            parameters.put((Integer) args[0], args[1]);
+                        }
+                        return null;
+                    });
+        }
+    }
+}
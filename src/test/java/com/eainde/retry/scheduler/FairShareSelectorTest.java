@@ -0,0 +1,146 @@
+package com.eainde.retry.scheduler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FairShareSelectorTest {
+
+    private final FairShareSelector<Backlog> selector = new FairShareSelector<>();
+
+    @Test
+    void splitsTheBudgetByWeightWhileEveryLaneIsBacklogged() {
+        Backlog heavy = new Backlog("heavy", 1_000);
+        Backlog light = new Backlog("light", 1_000);
+        List<FairShareSelector.Lane<Backlog>> lanes = List.of(lane(heavy, 3, 100), lane(light, 1, 100));
+
+        List<String> rows = selector.select(lanes, 8, Backlog::take);
+
+        assertEquals(8, rows.size());
+        assertEquals(6, count(rows, "heavy"));
+        assertEquals(2, count(rows, "light"));
+    }
+
+    @Test
+    void carriesUnspentCreditOverSoASmallWeightStillGetsItsShare() {
+        Backlog heavy = new Backlog("heavy", 1_000);
+        Backlog light = new Backlog("light", 1_000);
+        List<FairShareSelector.Lane<Backlog>> lanes = List.of(lane(heavy, 7, 100), lane(light, 1, 100));
+
+        // The light lane earns 2 * 1/8 = 0.25 rows per poll, so one row every fourth poll.
+        List<Integer> pollsServingLight = new ArrayList<>();
+        for (int poll = 1; poll <= 40; poll++) {
+            if (count(selector.select(lanes, 2, Backlog::take), "light") > 0) {
+                pollsServingLight.add(poll);
+            }
+        }
+
+        assertEquals(List.of(4, 8, 12, 16, 20, 24, 28, 32, 36, 40), pollsServingLight);
+        assertEquals(1_000 - 10, light.remaining);
+        assertEquals(1_000 - 70, heavy.remaining);
+    }
+
+    @Test
+    void sharesTheBudgetOfADrainedLaneWithTheBackloggedOnes() {
+        Backlog almostEmpty = new Backlog("almostEmpty", 1);
+        Backlog busy = new Backlog("busy", 1_000);
+        List<FairShareSelector.Lane<Backlog>> lanes = List.of(lane(almostEmpty, 1, 100), lane(busy, 1, 100));
+
+        List<String> rows = selector.select(lanes, 10, Backlog::take);
+
+        assertEquals(10, rows.size());
+        assertEquals(1, count(rows, "almostEmpty"));
+        assertEquals(9, count(rows, "busy"));
+    }
+
+    @Test
+    void aDrainedLaneForfeitsItsCredit() {
+        Backlog bursty = new Backlog("bursty", 0);
+        Backlog busy = new Backlog("busy", 1_000);
+        List<FairShareSelector.Lane<Backlog>> lanes = List.of(lane(bursty, 1, 100), lane(busy, 1, 100));
+        for (int poll = 0; poll < 10; poll++) {
+            selector.select(lanes, 4, Backlog::take);
+        }
+
+        bursty.remaining = 1_000;
+        List<String> rows = selector.select(lanes, 4, Backlog::take);
+
+        // No credit was banked while it was empty, so it gets its fair half and no more.
+        assertEquals(2, count(rows, "bursty"));
+        assertEquals(2, count(rows, "busy"));
+    }
+
+    @Test
+    void neverGivesALaneMoreThanItsOwnBatchSize() {
+        Backlog capped = new Backlog("capped", 1_000);
+        Backlog other = new Backlog("other", 1_000);
+        List<FairShareSelector.Lane<Backlog>> lanes = List.of(lane(capped, 10, 3), lane(other, 1, 100));
+
+        List<String> rows = selector.select(lanes, 20, Backlog::take);
+
+        assertEquals(3, count(rows, "capped"));
+        assertEquals(17, count(rows, "other"));
+    }
+
+    @Test
+    void interleavesTheSelectedRowsAcrossLanes() {
+        Backlog first = new Backlog("first", 1_000);
+        Backlog second = new Backlog("second", 1_000);
+        List<FairShareSelector.Lane<Backlog>> lanes = List.of(lane(first, 1, 100), lane(second, 1, 100));
+
+        List<String> rows = selector.select(lanes, 4, Backlog::take);
+
+        for (int i = 1; i < rows.size(); i++) {
+            assertTrue(!laneOf(rows.get(i)).equals(laneOf(rows.get(i - 1))), "rows not interleaved: " + rows);
+        }
+    }
+
+    @Test
+    void selectsNothingWithoutBudgetOrLanes() {
+        Backlog backlog = new Backlog("backlog", 10);
+
+        assertEquals(List.of(), selector.select(List.of(lane(backlog, 1, 10)), 0, Backlog::take));
+        assertEquals(List.of(), selector.select(List.<FairShareSelector.Lane<Backlog>>of(), 10, Backlog::take));
+        assertEquals(10, backlog.remaining);
+    }
+
+    private static FairShareSelector.Lane<Backlog> lane(Backlog backlog, int weight, int maxRows) {
+        return new FairShareSelector.Lane<>(backlog.name, weight, maxRows, backlog);
+    }
+
+    private static long count(List<String> rows, String lane) {
+        return rows.stream().filter(row -> laneOf(row).equals(lane)).count();
+    }
+
+    private static String laneOf(String row) {
+        return row.substring(0, row.indexOf('#'));
+    }
+
+    /**
+     * The due rows of one lane; rows are named {@code lane#n}.
+     */
+    private static final class Backlog {
+
+        private final String name;
+        private int remaining;
+        private int next;
+
+        private Backlog(String name, int remaining) {
+            this.name = name;
+            this.remaining = remaining;
+        }
+
+        private List<String> take(int limit) {
+            List<String> rows = new ArrayList<>();
+            while (rows.size() < limit && remaining > 0) {
+                rows.add(name + "#" + next++);
+                remaining--;
+            }
+            return rows;
+        }
+    }
+}
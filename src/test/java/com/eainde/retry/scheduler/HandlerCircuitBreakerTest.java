@@ -0,0 +1,135 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HandlerCircuitBreakerTest {
+
+    private static final Duration WAIT = Duration.ofSeconds(30);
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    private HandlerCircuitBreaker breaker(int threshold, int windowSize, int minimumCalls) {
+        KafkaRetryProperties.CircuitBreaker settings = new KafkaRetryProperties.CircuitBreaker();
+        settings.setEnabled(true);
+        settings.setFailureRateThreshold(threshold);
+        settings.setSlidingWindowSize(windowSize);
+        settings.setMinimumNumberOfCalls(minimumCalls);
+        settings.setWaitDurationInOpenState(WAIT);
+        return new HandlerCircuitBreaker("orders", settings, now::get);
+    }
+
+    private static void record(HandlerCircuitBreaker breaker, int successes, int failures) {
+        for (int i = 0; i < successes; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onSuccess();
+        }
+        for (int i = 0; i < failures; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+    }
+
+    @Test
+    void staysClosedUntilTheMinimumNumberOfCallsIsRecorded() {
+        HandlerCircuitBreaker breaker = breaker(50, 10, 4);
+
+        record(breaker, 0, 3);
+
+        assertEquals(HandlerCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(25, breaker.permittedRows(25));
+    }
+
+    @Test
+    void opensOnceTheFailureRateReachesTheThreshold() {
+        HandlerCircuitBreaker breaker = breaker(50, 10, 4);
+
+        record(breaker, 3, 2);
+        assertEquals(HandlerCircuitBreaker.State.CLOSED, breaker.getState());
+        record(breaker, 0, 1);
+
+        // 3 of the 6 recorded attempts failed.
+        assertEquals(HandlerCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(0, breaker.permittedRows(25));
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void forgetsOutcomesThatSlideOutOfTheWindow() {
+        HandlerCircuitBreaker breaker = breaker(50, 4, 4);
+
+        record(breaker, 0, 1);
+        record(breaker, 3, 0);
+        // The early failure is evicted, so the window holds one failure out of four again.
+        record(breaker, 0, 1);
+        assertEquals(HandlerCircuitBreaker.State.CLOSED, breaker.getState());
+
+        record(breaker, 0, 1);
+        assertEquals(HandlerCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void letsExactlyOneProbeThroughAfterTheWaitDuration() {
+        HandlerCircuitBreaker breaker = breaker(50, 4, 2);
+        record(breaker, 0, 2);
+
+        now.addAndGet(WAIT.toNanos() - 1);
+        assertEquals(HandlerCircuitBreaker.State.OPEN, breaker.getState());
+
+        now.addAndGet(1);
+        assertEquals(HandlerCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(1, breaker.permittedRows(25));
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(0, breaker.permittedRows(25));
+    }
+
+    @Test
+    void closesWithAnEmptyWindowWhenTheProbeSucceeds() {
+        HandlerCircuitBreaker breaker = breaker(50, 4, 2);
+        record(breaker, 0, 2);
+        now.addAndGet(WAIT.toNanos());
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+
+        assertEquals(HandlerCircuitBreaker.State.CLOSED, breaker.getState());
+        // The failures that opened it are gone: one new failure is below the minimum number of calls.
+        record(breaker, 0, 1);
+        assertEquals(HandlerCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void reopensForAnotherWaitDurationWhenTheProbeFails() {
+        HandlerCircuitBreaker breaker = breaker(50, 4, 2);
+        record(breaker, 0, 2);
+        now.addAndGet(WAIT.toNanos());
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+
+        assertEquals(HandlerCircuitBreaker.State.OPEN, breaker.getState());
+        now.addAndGet(WAIT.toNanos() - 1);
+        assertEquals(HandlerCircuitBreaker.State.OPEN, breaker.getState());
+        now.addAndGet(1);
+        assertEquals(HandlerCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    void ignoresOutcomesOfAttemptsThatStartedBeforeItOpened() {
+        HandlerCircuitBreaker breaker = breaker(50, 4, 2);
+        assertTrue(breaker.tryAcquire());
+        record(breaker, 0, 2);
+
+        breaker.onSuccess();
+
+        assertEquals(HandlerCircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,84 @@
+package com.eainde.retry.scheduler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HandlerRateLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    // 10 permits per second, so one token is earned every 100 ms.
+    private final HandlerRateLimiter limiter = new HandlerRateLimiter(10, 5, now::get);
+
+    @Test
+    void startsWithAFullBurst() {
+        assertEquals(5, limiter.available(20, 0));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertEquals(0, limiter.available(20, 0));
+    }
+
+    @Test
+    void queuesReservationsBeyondTheBurstAtTheConfiguredRate() {
+        for (int i = 0; i < 5; i++) {
+            limiter.reserve();
+        }
+
+        assertEquals(100 * MILLIS, limiter.reserve(), 1.0);
+        assertEquals(200 * MILLIS, limiter.reserve(), 1.0);
+        assertEquals(300 * MILLIS, limiter.reserve(), 1.0);
+    }
+
+    @Test
+    void paysOffTheDebtOfEarlierReservationsFirst() {
+        for (int i = 0; i < 7; i++) {
+            limiter.reserve();
+        }
+
+        // Two tokens are owed, so the next one is the third to be earned.
+        assertEquals(0, limiter.available(20, 250 * MILLIS));
+        assertEquals(1, limiter.available(20, 300 * MILLIS));
+
+        now.addAndGet(200 * MILLIS);
+        assertEquals(0, limiter.available(20, 0));
+        assertEquals(100 * MILLIS, limiter.reserve(), 1.0);
+    }
+
+    @Test
+    void countsTheTokensEarnedWithinTheLookahead() {
+        for (int i = 0; i < 5; i++) {
+            limiter.reserve();
+        }
+
+        assertEquals(0, limiter.available(20, 99 * MILLIS));
+        assertEquals(1, limiter.available(20, 100 * MILLIS));
+        assertEquals(10, limiter.available(20, 1_000 * MILLIS));
+        assertEquals(3, limiter.available(3, 1_000 * MILLIS));
+    }
+
+    @Test
+    void refillsNoFurtherThanTheBurst() {
+        for (int i = 0; i < 5; i++) {
+            limiter.reserve();
+        }
+
+        now.addAndGet(250 * MILLIS);
+        assertEquals(2, limiter.available(20, 0));
+
+        now.addAndGet(60_000 * MILLIS);
+        assertEquals(5, limiter.available(20, 0));
+    }
+
+    @Test
+    void rejectsANonPositiveRate() {
+        assertThrows(IllegalArgumentException.class, () -> new HandlerRateLimiter(0, 5, now::get));
+    }
+}
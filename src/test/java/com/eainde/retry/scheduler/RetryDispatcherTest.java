@@ -0,0 +1,153 @@
+package com.eainde.retry.scheduler;
+
+import com.eainde.retry.config.KafkaRetryProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryDispatcherTest {
+
+    private final KafkaRetryProperties properties = new KafkaRetryProperties();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private RetryDispatcher dispatcher;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    private RetryDispatcher dispatcher(int maxInFlightPerHandler) {
+        properties.getDispatch().setPoolSize(8);
+        properties.getDispatch().setMaxInFlightPerHandler(maxInFlightPerHandler);
+        dispatcher = new RetryDispatcher(properties);
+        return dispatcher;
+    }
+
+    private static List<Integer> items(int count) {
+        return IntStream.range(0, count).boxed().toList();
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void runsEveryItemOfABatch() {
+        AtomicInteger done = new AtomicInteger();
+
+        dispatcher(2).dispatch(items(50), item -> item % 3 == 0 ? "orders" : "payments", item -> done.incrementAndGet());
+
+        assertEquals(50, done.get());
+    }
+
+    @Test
+    void concurrentBatchesShareTheHandlerCap() throws Exception {
+        RetryDispatcher dispatcher = dispatcher(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        Runnable batch = () -> dispatcher.dispatch(items(10), item -> "orders", item -> {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            pause(10);
+            running.decrementAndGet();
+            done.incrementAndGet();
+        });
+
+        // A poll and a timing wheel handoff dispatching the same handler at once.
+        Thread poll = new Thread(batch);
+        Thread wheel = new Thread(batch);
+        poll.start();
+        wheel.start();
+        poll.join(10_000);
+        wheel.join(10_000);
+
+        assertEquals(20, done.get());
+        assertTrue(mostRunning.get() <= 2, mostRunning.get() + " attempts of one handler ran at once");
+    }
+
+    @Test
+    void leavesItemsNotStartedWhenTheBatchTimesOut() {
+        properties.getDispatch().setBatchTimeout(Duration.ofMillis(150));
+        AtomicInteger done = new AtomicInteger();
+
+        dispatcher(1).dispatch(items(10), item -> "orders", item -> {
+            pause(100);
+            done.incrementAndGet();
+        });
+
+        // Two attempts fit the timeout; the one running when it expires is still waited for.
+        assertTrue(done.get() >= 2 && done.get() < 10, done.get() + " items ran");
+        int afterReturn = done.get();
+        pause(300);
+        assertEquals(afterReturn, done.get());
+    }
+
+    @Test
+    void stopsWaitingForAHungAttemptOnceTheClaimLeaseRunsOut() {
+        properties.getDispatch().setBatchTimeout(Duration.ofMillis(100));
+        properties.getCoordination().setLeaseDuration(Duration.ofMillis(400));
+        RetryDispatcher dispatcher = dispatcher(4);
+
+        long startedAt = System.nanoTime();
+        dispatcher.dispatch(items(1), item -> "orders", item -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        assertTrue(elapsedMillis >= 400 && elapsedMillis < 5_000, "returned after " + elapsedMillis + "ms");
+    }
+
+    @Test
+    @EnabledForJreRange(min = JRE.JAVA_21)
+    void aBackloggedHandlerDoesNotHoldTheVirtualThreadPermitsOfOthers() throws Exception {
+        properties.getDispatch().setThreadMode(KafkaRetryProperties.ThreadMode.VIRTUAL);
+        properties.getDispatch().setVirtualThreadConcurrency(4);
+        RetryDispatcher dispatcher = dispatcher(1);
+        Set<Integer> payments = ConcurrentHashMap.newKeySet();
+        CountDownLatch paymentsDone = new CountDownLatch(5);
+
+        // 100 orders queue behind a single hung attempt; the 5 payments need one global permit.
+        Thread batch = new Thread(() -> dispatcher.dispatch(items(105), item -> item < 100 ? "orders" : "payments",
+                item -> {
+                    if (item < 100) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    } else {
+                        payments.add(item);
+                        paymentsDone.countDown();
+                    }
+                }));
+        batch.start();
+
+        assertTrue(paymentsDone.await(5, TimeUnit.SECONDS), "payments ran: " + payments);
+        release.countDown();
+        batch.join(10_000);
+    }
+}
@@ -0,0 +1,86 @@
+package com.eainde.retry.scheduler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private static final long START = 1_000_000L;
+    private static final long TICK = 100L;
+    private static final int WHEEL_SIZE = 8;
+
+    @Test
+    void rejectsItemsThatAreAlreadyDue() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, START);
+
+        assertFalse(wheel.add(START - 1, "past"));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void firesAnItemWithinOneTickOfItsExpirationButNeverBefore() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, START);
+        assertTrue(wheel.add(START + 250, "item"));
+
+        assertEquals(List.of(), wheel.advance(START + 249));
+        assertEquals(List.of("item"), wheel.advance(START + 250 + TICK));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cascadesItemsBeyondOneRotationFromTheOverflowLevel() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, START);
+        long expiration = START + TICK * WHEEL_SIZE * 3 + 50;
+        assertTrue(wheel.add(expiration, "far"));
+        assertEquals(1, wheel.size());
+
+        for (long now = START; now < expiration; now += TICK) {
+            assertEquals(List.of(), wheel.advance(now), "fired early at " + now);
+        }
+        assertEquals(List.of("far"), wheel.advance(expiration + TICK));
+    }
+
+    @Test
+    void firesEveryItemLateByAtMostOneTick() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK, WHEEL_SIZE, START);
+        Random random = new Random(42);
+        Map<Long, Long> firedAt = new HashMap<>();
+        List<Long> expirations = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            long expiration = START + TICK + random.nextInt((int) (TICK * WHEEL_SIZE * WHEEL_SIZE * 2));
+            if (wheel.add(expiration, (long) i)) {
+                expirations.add(expiration);
+            }
+        }
+        assertEquals(1_000, wheel.size());
+
+        for (long now = START; wheel.size() > 0; now += TICK / 4) {
+            for (Long item : wheel.advance(now)) {
+                firedAt.put(item, now);
+            }
+        }
+
+        assertEquals(1_000, firedAt.size());
+        for (int i = 0; i < expirations.size(); i++) {
+            long lateness = firedAt.get((long) i) - expirations.get(i);
+            assertTrue(lateness >= 0, "item " + i + " fired " + -lateness + "ms early");
+            assertTrue(lateness <= TICK + TICK / 4, "item " + i + " fired " + lateness + "ms late");
+        }
+    }
+
+    @Test
+    void rejectsNonPositiveTickOrSize() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<>(0, WHEEL_SIZE, START));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<>(TICK, 0, START));
+    }
+}
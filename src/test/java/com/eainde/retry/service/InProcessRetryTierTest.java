@@ -0,0 +1,170 @@
+package com.eainde.retry.service;
+
+import com.eainde.retry.ExceptionRetryabilityChecker;
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.model.MessageStatus;
+import com.eainde.retry.repository.FailedMessageRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class InProcessRetryTierTest {
+
+    private static final String HANDLER = "orderHandler";
+
+    private final FailedMessageRepository repository = mock(FailedMessageRepository.class);
+    private final KafkaRetryProperties properties = new KafkaRetryProperties();
+    private InProcessRetryTier tier;
+
+    @BeforeEach
+    void setUp() {
+        KafkaRetryProperties.InProcess settings = properties.getInProcess();
+        settings.setEnabled(true);
+        settings.setMaxAttempts(2);
+        settings.setInitialDelay(Duration.ofMillis(10));
+        settings.setShutdownTimeout(Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (tier != null && tier.isRunning()) {
+            tier.stop();
+        }
+    }
+
+    private InProcessRetryTier start(RetryMessageHandler handler) {
+        tier = new InProcessRetryTier(Map.of(HANDLER, handler), new KafkaRetryService(repository, properties, null, null),
+                new ExceptionRetryabilityChecker(properties), properties);
+        tier.start();
+        return tier;
+    }
+
+    private static KafkaRetryService.CapturedFailure failure(String payload) {
+        return KafkaRetryService.CapturedFailure.ofText(payload, HANDLER, RetryQualifierResolver.FailureContext.CONSUMER, true);
+    }
+
+    private FailedMessage storedMessage() {
+        ArgumentCaptor<FailedMessage> saved = ArgumentCaptor.forClass(FailedMessage.class);
+        verify(repository, timeout(5_000)).save(saved.capture());
+        return saved.getValue();
+    }
+
+    @Test
+    void doesNotStoreAMessageThatSucceedsInMemory() throws Exception {
+        CountDownLatch handled = new CountDownLatch(1);
+        InProcessRetryTier tier = start(message -> handled.countDown());
+
+        tier.submit(failure("order"));
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        tier.stop();
+        verify(repository, never()).save(any(FailedMessage.class));
+        verify(repository, never()).saveAll(anyIterable());
+    }
+
+    @Test
+    void storesAMessageStillFailingAfterItsAttemptsForTheScheduler() {
+        AtomicInteger attempts = new AtomicInteger();
+        start(message -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("still down");
+        }).submit(failure("order"));
+
+        FailedMessage stored = storedMessage();
+        assertEquals(MessageStatus.FAILED, stored.getStatus());
+        assertEquals("order", stored.getPayload());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void storesANonRetryableFailureAsAPermanentFailureStraightAway() {
+        properties.setNonRetryableExceptions(List.of(IllegalArgumentException.class.getName()));
+        AtomicInteger attempts = new AtomicInteger();
+        start(message -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException("malformed");
+        }).submit(failure("order"));
+
+        assertEquals(MessageStatus.PERMANENT_FAILURE, storedMessage().getStatus());
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void storesTheMessagesStillHeldWhenItStops() {
+        properties.getInProcess().setInitialDelay(Duration.ofMinutes(1));
+        InProcessRetryTier tier = start(message -> {
+        });
+        tier.submit(failure("first"));
+        tier.submit(failure("second"));
+
+        tier.stop();
+
+        ArgumentCaptor<Iterable<FailedMessage>> saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(repository).saveAll(saved.capture());
+        List<String> payloads = new ArrayList<>();
+        saved.getValue().forEach(message -> payloads.add(message.getPayload()));
+        payloads.sort(null);
+        assertEquals(List.of("first", "second"), payloads);
+        verify(repository, never()).save(any(FailedMessage.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void holdsNoMoreThanItsCapacityWhenSubmittedToConcurrently() throws Exception {
+        properties.getInProcess().setCapacity(10);
+        properties.getInProcess().setInitialDelay(Duration.ofMinutes(1));
+        InProcessRetryTier tier = start(message -> {
+        });
+        ExecutorService listeners = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<?>> submissions = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String payload = "order-" + i;
+                submissions.add(listeners.submit(() -> {
+                    go.await();
+                    tier.submit(failure(payload));
+                    return null;
+                }));
+            }
+            go.countDown();
+            for (Future<?> submission : submissions) {
+                submission.get();
+            }
+        } finally {
+            listeners.shutdownNow();
+        }
+
+        // Every failure beyond the capacity is stored straight away; the held ones on stop.
+        verify(repository, times(190)).save(any(FailedMessage.class));
+        tier.stop();
+        ArgumentCaptor<Iterable<FailedMessage>> drained = ArgumentCaptor.forClass(Iterable.class);
+        verify(repository).saveAll(drained.capture());
+        assertEquals(10, drained.getValue().spliterator().getExactSizeIfKnown());
+    }
+}
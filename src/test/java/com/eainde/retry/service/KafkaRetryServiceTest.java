@@ -0,0 +1,114 @@
+package com.eainde.retry.service;
+
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.model.FailedMessage;
+import com.eainde.retry.model.MessageStatus;
+import com.eainde.retry.repository.FailedMessageRepository;
+import com.eainde.retry.topic.RetryTopicPublisher;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.condition.EmbeddedKafkaCondition;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+@EmbeddedKafka(partitions = 1, topics = KafkaRetryServiceTest.RETRY_TOPIC)
+class KafkaRetryServiceTest {
+
+    static final String TOPIC = "payments";
+    static final String RETRY_TOPIC = "payments.retry.5s";
+
+    private final FailedMessageRepository repository = mock(FailedMessageRepository.class);
+    private final KafkaRetryProperties properties = new KafkaRetryProperties();
+
+    private static KafkaRetryService.CapturedFailure failure(String payload, String topic) {
+        return new KafkaRetryService.CapturedFailure(payload.getBytes(StandardCharsets.UTF_8),
+                KafkaRetryService.TEXT_CONTENT_TYPE, "paymentHandler", RetryQualifierResolver.FailureContext.CONSUMER,
+                true, topic, null);
+    }
+
+    private RetryTopicPublisher failingPublisher() {
+        RetryTopicPublisher publisher = mock(RetryTopicPublisher.class);
+        doThrow(new IllegalStateException("Could not publish to " + RETRY_TOPIC))
+                .when(publisher).publish(any(KafkaRetryService.CapturedFailure.class));
+        return publisher;
+    }
+
+    @Test
+    void publishesAFailureToItsRetryTopicInsteadOfTheTable() throws Exception {
+        EmbeddedKafkaBroker broker = EmbeddedKafkaCondition.getBroker();
+        properties.getRetryTopics().setEnabled(true);
+        try (RetryTopicPublisher publisher = new RetryTopicPublisher(new DefaultKafkaProducerFactory<>(
+                KafkaTestUtils.producerProps(broker), new ByteArraySerializer(), new ByteArraySerializer()), properties);
+             Consumer<byte[], byte[]> consumer = new KafkaConsumer<>(KafkaTestUtils.consumerProps("reader", "false", broker),
+                     new ByteArrayDeserializer(), new ByteArrayDeserializer())) {
+            KafkaRetryService service = new KafkaRetryService(repository, properties, null, null, publisher);
+
+            service.saveFailedMessage(failure("payment", TOPIC));
+
+            broker.consumeFromAnEmbeddedTopic(consumer, RETRY_TOPIC);
+            ConsumerRecord<byte[], byte[]> record = KafkaTestUtils.getSingleRecord(consumer, RETRY_TOPIC, Duration.ofSeconds(30));
+            assertEquals("payment", new String(record.value(), StandardCharsets.UTF_8));
+            verifyNoInteractions(repository);
+        }
+    }
+
+    @Test
+    void storesAFailureInTheTableWhenItCannotBePublished() {
+        KafkaRetryService service = new KafkaRetryService(repository, properties, null, null, failingPublisher());
+
+        service.saveFailedMessage(failure("payment", TOPIC));
+
+        ArgumentCaptor<FailedMessage> saved = ArgumentCaptor.forClass(FailedMessage.class);
+        verify(repository).save(saved.capture());
+        assertEquals("payment", saved.getValue().getPayload());
+        assertEquals("paymentHandler", saved.getValue().getHandlerQualifier());
+        assertEquals(RetryQualifierResolver.FailureContext.CONSUMER, saved.getValue().getFailureContext());
+        assertEquals(MessageStatus.FAILED, saved.getValue().getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void storesTheFailuresOfABatchThatCannotBePublishedTogether() {
+        KafkaRetryService service = new KafkaRetryService(repository, properties, null, null, failingPublisher());
+
+        service.saveFailedMessages(List.of(failure("first", TOPIC), failure("second", TOPIC)));
+
+        ArgumentCaptor<Iterable<FailedMessage>> saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(repository).saveAll(saved.capture());
+        List<String> payloads = new ArrayList<>();
+        saved.getValue().forEach(message -> payloads.add(message.getPayload()));
+        assertEquals(List.of("first", "second"), payloads);
+    }
+
+    @Test
+    void storesAFailureWithoutATopicWithoutPublishingIt() {
+        RetryTopicPublisher publisher = failingPublisher();
+        KafkaRetryService service = new KafkaRetryService(repository, properties, null, null, publisher);
+
+        service.saveFailedMessage(failure("payment", null));
+
+        verify(publisher, never()).publish(any(KafkaRetryService.CapturedFailure.class));
+        verify(repository).save(any(FailedMessage.class));
+    }
+}
@@ -0,0 +1,191 @@
+package com.eainde.retry.topic;
+
+import com.eainde.retry.ExceptionRetryabilityChecker;
+import com.eainde.retry.RetryQualifierResolver;
+import com.eainde.retry.config.KafkaRetryProperties;
+import com.eainde.retry.service.KafkaRetryService;
+import com.eainde.retry.service.RetryMessageHandler;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.condition.EmbeddedKafkaCondition;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@EmbeddedKafka(partitions = 1)
+class RetryTopicListenerTest {
+
+    private static final String HANDLER = "orderHandler";
+    private static final Duration DELAY = Duration.ofSeconds(2);
+    private static final AtomicInteger RUN = new AtomicInteger();
+
+    private final KafkaRetryProperties properties = new KafkaRetryProperties();
+    private final List<AutoCloseable> closeables = new ArrayList<>();
+
+    private EmbeddedKafkaBroker broker;
+    private String topic;
+    private String retryTopic;
+    private String dltTopic;
+    private RetryTopicPublisher publisher;
+    private RetryTopicListener listener;
+
+    @BeforeEach
+    void setUp() {
+        broker = EmbeddedKafkaCondition.getBroker();
+        // Every test has its own topics and group, so records of earlier tests do not interfere.
+        int run = RUN.incrementAndGet();
+        topic = "orders" + run;
+        KafkaRetryProperties.RetryTopics settings = properties.getRetryTopics();
+        settings.setEnabled(true);
+        settings.setDelays(List.of(DELAY));
+        settings.setRetrySuffix(".retry" + run);
+        settings.setDltSuffix(".dlt" + run);
+        settings.setGroupId("kafka-retry-topics-" + run);
+        settings.setPollTimeout(Duration.ofMillis(200));
+        properties.setMaxRetries(2);
+        retryTopic = topic + ".retry" + run + ".2s";
+        dltTopic = topic + ".dlt" + run;
+        broker.addTopics(retryTopic, dltTopic);
+
+        publisher = new RetryTopicPublisher(new DefaultKafkaProducerFactory<>(KafkaTestUtils.producerProps(broker),
+                new ByteArraySerializer(), new ByteArraySerializer()), properties);
+        closeables.add(publisher);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (listener != null && listener.isRunning()) {
+            listener.stop();
+        }
+        for (AutoCloseable closeable : closeables) {
+            closeable.close();
+        }
+    }
+
+    private void startListener(RetryMessageHandler handler) {
+        Map<String, Object> consumerProperties = Map.of(
+                ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, broker.getBrokersAsString(),
+                ConsumerConfig.METADATA_MAX_AGE_CONFIG, 500);
+        listener = new RetryTopicListener(consumerProperties, Map.of(HANDLER, handler),
+                new ExceptionRetryabilityChecker(properties), publisher, properties);
+        listener.start();
+    }
+
+    private void publishFailure(String payload) {
+        publisher.publish(new KafkaRetryService.CapturedFailure(payload.getBytes(StandardCharsets.UTF_8),
+                KafkaRetryService.TEXT_CONTENT_TYPE, HANDLER, RetryQualifierResolver.FailureContext.CONSUMER,
+                true, topic, "key".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private ConsumerRecord<byte[], byte[]> singleDeadLetter() {
+        Consumer<byte[], byte[]> consumer = new KafkaConsumer<>(KafkaTestUtils.consumerProps(dltTopic, "false", broker),
+                new ByteArrayDeserializer(), new ByteArrayDeserializer());
+        closeables.add(consumer);
+        broker.consumeFromAnEmbeddedTopic(consumer, dltTopic);
+        return KafkaTestUtils.getSingleRecord(consumer, dltTopic, Duration.ofSeconds(30));
+    }
+
+    private static String header(ConsumerRecord<byte[], byte[]> record, String name) {
+        Header header = record.headers().lastHeader(name);
+        return header != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+
+    @Test
+    void retriesEachRecordOnceInOrderAndNotBeforeItIsDue() throws Exception {
+        BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+        List<Long> handledAt = Collections.synchronizedList(new ArrayList<>());
+        startListener(message -> {
+            handledAt.add(System.currentTimeMillis());
+            handled.add(message.getPayload());
+        });
+
+        long publishedAt = System.currentTimeMillis();
+        publishFailure("first");
+        publishFailure("second");
+        publishFailure("third");
+
+        assertEquals("first", handled.poll(30, TimeUnit.SECONDS));
+        assertEquals("second", handled.poll(30, TimeUnit.SECONDS));
+        assertEquals("third", handled.poll(30, TimeUnit.SECONDS));
+        // The paused partition is sought back to the head record, so nothing is retried twice.
+        assertNull(handled.poll(DELAY.toMillis(), TimeUnit.MILLISECONDS));
+        for (long at : handledAt) {
+            assertTrue(at - publishedAt >= DELAY.toMillis(), "retried " + (at - publishedAt) + "ms after publishing");
+        }
+    }
+
+    @Test
+    void sendsARecordToTheDeadLetterTopicOnceItsRetriesAreUsedUp() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        startListener(message -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("still down");
+        });
+
+        publishFailure("order");
+
+        ConsumerRecord<byte[], byte[]> deadLetter = singleDeadLetter();
+        assertEquals("order", new String(deadLetter.value(), StandardCharsets.UTF_8));
+        assertEquals("key", new String(deadLetter.key(), StandardCharsets.UTF_8));
+        assertEquals(topic, header(deadLetter, RetryTopicHeaders.ORIGINAL_TOPIC));
+        assertEquals("3", header(deadLetter, RetryTopicHeaders.ATTEMPT));
+        assertEquals("still down", header(deadLetter, RetryTopicHeaders.ERROR));
+        assertNull(header(deadLetter, RetryTopicHeaders.DUE_AT));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void sendsANonRetryableFailureToTheDeadLetterTopicStraightAway() throws Exception {
+        properties.setNonRetryableExceptions(List.of(IllegalArgumentException.class.getName()));
+        AtomicInteger attempts = new AtomicInteger();
+        startListener(message -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException("malformed");
+        });
+
+        publishFailure("order");
+
+        ConsumerRecord<byte[], byte[]> deadLetter = singleDeadLetter();
+        assertEquals("2", header(deadLetter, RetryTopicHeaders.ATTEMPT));
+        assertEquals("malformed", header(deadLetter, RetryTopicHeaders.ERROR));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void retriesARecordWithAnUnknownHandlerUntilItIsDeadLettered() throws Exception {
+        startListener(message -> {
+        });
+
+        publisher.publish(topic, null, "orphan".getBytes(StandardCharsets.UTF_8), null, "missingHandler",
+                null, 1, true, null);
+
+        ConsumerRecord<byte[], byte[]> deadLetter = singleDeadLetter();
+        assertNotNull(header(deadLetter, RetryTopicHeaders.ERROR));
+        assertEquals("missingHandler", header(deadLetter, RetryTopicHeaders.HANDLER));
+    }
+}